@@ -0,0 +1,111 @@
+package com.ibm.mq.badge;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Holds back the taking of new requests while a later stage of the
+ * purchase pipeline is behind. How far the stage is behind is read from a
+ * supplier. Once it reaches the high watermark the gate closes, and it
+ * stays closed until it has fallen to the low watermark, so that
+ * consumption is not switched on and off by every request.
+ *
+ * <p>The {@link Cashier} passes through the gate before taking each
+ * request off the queue. While the gate is closed requests stay on the
+ * queue, where the queue manager holds them, rather than piling up in the
+ * service. The stage calls {@link #signal()} each time it makes progress,
+ * which wakes the waiting cashiers to check again.
+ * @version 1.0
+ * @see Cashier
+ * @see DeductionJournal#getFlushLagMillis()
+ */
+public class BackpressureGate {
+    private static final Logger logger = Logger.getLogger("com.ibm.mq.badge");
+
+    /**
+     * Longest time waited for a signal before checking again, in case the
+     * stage makes progress without signalling.
+     */
+    private static final long MAX_WAIT_MILLIS = 50;
+
+    private final String name;
+    private final IntSupplier depth;
+    private final int highWatermark;
+    private final int lowWatermark;
+    private volatile boolean closed = false;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition progress = lock.newCondition();
+
+    /**
+     * Creates a gate for a stage of the pipeline.
+     * @param name Name of the stage, used in log messages.
+     * @param depth Gives how far the stage is behind, such as the age in
+     * milliseconds of the oldest item it holds.
+     * @param highWatermark Depth at which the gate closes.
+     * @param lowWatermark Depth at which the gate opens again. Kept below
+     * the high watermark.
+     */
+    public BackpressureGate(String name, IntSupplier depth, int highWatermark, int lowWatermark) {
+        this.name = name;
+        this.depth = depth;
+        this.highWatermark = Math.max(1, highWatermark);
+        this.lowWatermark = Math.max(0, Math.min(lowWatermark, this.highWatermark - 1));
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Returns straight away while the stage is keeping up, otherwise waits
+     * until it has caught up to the low watermark.
+     * @throws InterruptedException Thrown if interrupted while waiting.
+     */
+    public void pass() throws InterruptedException {
+        if (!closed && depth.getAsInt() < highWatermark) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (!closed) {
+                int behind = depth.getAsInt();
+                if (behind < highWatermark) {
+                    return;
+                }
+                closed = true;
+                logger.warning(name + " is behind by " + behind + ", pausing consumption");
+            }
+            while (depth.getAsInt() > lowWatermark) {
+                progress.await(MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            if (closed) {
+                closed = false;
+                logger.info(name + " has caught up, resuming consumption");
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by the stage when it has made progress. Wakes the cashiers
+     * waiting at the gate, if it is closed, to check again.
+     */
+    public void signal() {
+        if (!closed) {
+            return;
+        }
+        lock.lock();
+        try {
+            progress.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+}
@@ -1,5 +1,14 @@
 package com.ibm.mq.badge;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -9,10 +18,11 @@ import javax.jms.JMSException;
 import javax.jms.JMSProducer;
 import javax.jms.JMSRuntimeException;
 import javax.jms.Message;
-import javax.jms.TextMessage;
 import javax.jms.Destination;
 
+import com.ibm.mq.events.TicketRequest;
 import com.ibm.mq.exceptions.CouldNotDeductTicketsException;
+import com.ibm.mq.exceptions.MalformedRequestException;
 
 /**
  * Used to connect to topics and queues to listen for messages and create
@@ -30,6 +40,47 @@ import com.ibm.mq.exceptions.CouldNotDeductTicketsException;
  * <li>Contains <tt>numberRequested</tt> tag - How many tickets for that event
  * is being requested.
  * </ul>
+ *
+ * <p>By default the cashier polls the queue from its own thread. In
+ * listener mode, set with {@link #setListenerMode(int, int)}, requests are
+ * pushed to a <tt>MessageListener</tt> and handed to a bounded pool of
+ * workers. Each worker sends its replies through its own <tt>JMSContext</tt>
+ * on the same connection, as a context can only be used by one thread at a
+ * time. When the pool is full the listener processes the request itself,
+ * which slows delivery down until the workers catch up.
+ *
+ * <p>With virtual threads turned on, see {@link VirtualThreads}, each
+ * request in listener mode runs on its own virtual thread instead, and the
+ * workers setting becomes the number of contexts the replies are sent
+ * through.
+ *
+ * <p>In batch mode, set with {@link #setBatchSize(int)}, the cashier polls
+ * through a transacted context. Up to a batch of requests is received,
+ * their tickets deducted and their responses sent, and then all of it is
+ * committed at once. If the batch can not be committed it is rolled back
+ * and the tickets are handed back to the {@link EventManager}, so no
+ * response is sent for a deduction that did not stick. Batch mode takes
+ * the place of listener mode when both are set.
+ *
+ * <p>A message selector can be set with {@link #setSelector(String)} so
+ * that the cashier only receives some of the requests, such as those for
+ * a range of events when the {@link CashierPool} is sharded.
+ *
+ * <p>A {@link BackpressureGate} can be set to stop the cashier taking
+ * requests while storage is behind. Requests that went stale while waiting
+ * on the queue are turned away before any tickets are looked at. A request
+ * is stale once its <tt>JMSExpiration</tt> or the reseller's
+ * <tt>replyDeadline</tt> property has passed, or once it is older than the
+ * maximum age set, going by its <tt>JMSTimestamp</tt>. Stale requests are
+ * rejected, or dropped without a response if set to, and are counted in
+ * the {@link RequestMetrics}.
+ *
+ * <p>When a {@link ProcessedRequests} cache is set, a request whose
+ * correlation ID has been handled before is given the same response again
+ * without any tickets being deducted.
+ *
+ * <p>When a {@link ConfirmationWriter} is set, responses outside batch
+ * mode are handed to it to send instead of being sent by the cashier.
  * @author Benjamin Brunyee
  * @version 1.0
  * @see EnvSetter
@@ -43,7 +94,26 @@ public class Cashier implements Runnable {
      */
     volatile boolean cancel = false;
     private static final Logger logger = Logger.getLogger("com.ibm.mq.badge");
-    private boolean listeningToResponse = false;
+    private volatile boolean listeningToResponse = false;
+
+    /**
+     * Longest time in milliseconds a copy of a request waits for the copy
+     * being handled to be settled, so it can be answered with the same
+     * outcome.
+     */
+    private static final long DUPLICATE_WAIT_MILLIS = 5000;
+
+    /**
+     * Name of this cashier, used as the thread name when it is run in the
+     * background. Set by the {@link CashierPool} to tell workers apart.
+     */
+    private String name = "Cashier";
+
+    /**
+     * Names of the queues that {@link #run()} connects to.
+     */
+    private String receiveFrom = "purchase";
+    private String sendToName = "confirmation";
 
     /**
      * {@link EventManager} is responsible for dealing with ticket requests
@@ -80,6 +150,79 @@ public class Cashier implements Runnable {
      */
     private Destination sendTo = null;
 
+    /**
+     * Number of workers used in listener mode, or 0 to poll the queue.
+     */
+    private int listenerWorkers = 0;
+
+    /**
+     * Number of requests that can wait for a worker in listener mode.
+     */
+    private int listenerQueueDepth = 0;
+
+    /**
+     * Largest number of requests received and committed together, or 1 or
+     * less to acknowledge each request on its own.
+     */
+    private int batchSize = 1;
+
+    /**
+     * Message selector for the requests this cashier receives, or null to
+     * receive every request.
+     */
+    private String selector = null;
+
+    /**
+     * Counts what happens to the requests handled.
+     */
+    private RequestMetrics metrics = new RequestMetrics();
+
+    /**
+     * Age in milliseconds after which a request is stale, or 0 for no limit.
+     */
+    private long maxRequestAge = 0;
+
+    /**
+     * Whether stale requests are dropped without a response rather than
+     * rejected.
+     */
+    private boolean dropStaleRequests = false;
+
+    /**
+     * Remembers the outcome of requests already handled when set.
+     */
+    private ProcessedRequests processedRequests = null;
+
+    /**
+     * Passed before each request is taken when set.
+     */
+    private BackpressureGate gate = null;
+
+    /**
+     * Sends the responses for this cashier when set.
+     */
+    private ConfirmationWriter confirmationWriter = null;
+
+    /**
+     * Whether requests in listener mode each run on their own virtual
+     * thread.
+     */
+    private boolean virtualThreads = false;
+
+    /**
+     * Lock that the cashier thread waits on in listener mode until it is
+     * told to stop.
+     */
+    private final Object stopSignal = new Object();
+
+    /**
+     * Contexts created for the workers in listener mode, kept so that they
+     * can be closed when the cashier stops.
+     */
+    private final List<JMSContext> workerContexts = Collections.synchronizedList(new ArrayList<>());
+    private ThreadLocal<JMSContext> workerContext = ThreadLocal.withInitial(this::createWorkerContext);
+    private ThreadLocal<JMSProducer> workerProducer = ThreadLocal.withInitial(() -> workerContext.get().createProducer());
+
     /**
      * This constructor will provide the {@link Cashier} with all the details
      * to make a successful pipeline of information and allow tickets to be
@@ -120,6 +263,156 @@ public class Cashier implements Runnable {
         this.eventManager = eventManager;
     }
 
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Switches the cashier to listener mode, where requests are pushed to it
+     * and processed by a pool of workers instead of being polled for.
+     * @param workers Number of workers processing requests. 0 or less keeps
+     * the cashier polling the queue.
+     * @param queueDepth Number of requests that can wait for a free worker.
+     */
+    public void setListenerMode(int workers, int queueDepth) {
+        this.listenerWorkers = Math.max(0, workers);
+        this.listenerQueueDepth = Math.max(1, queueDepth);
+    }
+
+    public boolean isListenerMode() {
+        return listenerWorkers > 0;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the number of requests received in one transaction. Must be set
+     * before the cashier connects, as batches need a transacted context.
+     * @param batchSize Largest number of requests in a batch. 1 or less
+     * turns batch mode off.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    public boolean isBatchMode() {
+        return batchSize > 1;
+    }
+
+    public String getSelector() {
+        return selector;
+    }
+
+    /**
+     * Sets the message selector used when the cashier connects.
+     * @param selector A JMS message selector, or null for every request.
+     */
+    public void setSelector(String selector) {
+        this.selector = selector;
+    }
+
+    public RequestMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setMetrics(RequestMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public long getMaxRequestAge() {
+        return maxRequestAge;
+    }
+
+    /**
+     * Sets the age after which a request is stale.
+     * @param maxRequestAge Age in milliseconds, or 0 for no limit.
+     */
+    public void setMaxRequestAge(long maxRequestAge) {
+        this.maxRequestAge = Math.max(0, maxRequestAge);
+    }
+
+    public boolean isDropStaleRequests() {
+        return dropStaleRequests;
+    }
+
+    /**
+     * Sets whether stale requests are dropped without a response. The
+     * reseller has stopped waiting for them, so the response would only be
+     * left on the queue.
+     * @param dropStaleRequests True to drop, false to reject.
+     */
+    public void setDropStaleRequests(boolean dropStaleRequests) {
+        this.dropStaleRequests = dropStaleRequests;
+    }
+
+    public ProcessedRequests getProcessedRequests() {
+        return processedRequests;
+    }
+
+    /**
+     * Sets the cache used to answer requests received more than once.
+     * @param processedRequests The cache, or null to handle every request.
+     */
+    public void setProcessedRequests(ProcessedRequests processedRequests) {
+        this.processedRequests = processedRequests;
+    }
+
+    public BackpressureGate getGate() {
+        return gate;
+    }
+
+    /**
+     * Sets the gate passed before each request is taken off the queue.
+     * @param gate The gate, or null to take requests as fast as they come.
+     */
+    public void setGate(BackpressureGate gate) {
+        this.gate = gate;
+    }
+
+    public ConfirmationWriter getConfirmationWriter() {
+        return confirmationWriter;
+    }
+
+    /**
+     * Sets the writer that responses are handed to. Not used in batch mode,
+     * where responses must be sent in the same transaction as the requests.
+     * @param confirmationWriter The writer, or null for the cashier to send
+     * its own responses.
+     */
+    public void setConfirmationWriter(ConfirmationWriter confirmationWriter) {
+        this.confirmationWriter = confirmationWriter;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Sets whether each request in listener mode runs on its own virtual
+     * thread. Has no effect if the Java runtime has no virtual threads.
+     * @param virtualThreads True to use virtual threads.
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Sets the queues that will be connected to when this cashier is run
+     * as a thread.
+     * @param receiveFrom A destination to receive messages from.
+     * @param sendTo A destination to send messages to.
+     */
+    public void setDestinations(String receiveFrom, String sendTo) {
+        this.receiveFrom = receiveFrom;
+        this.sendToName = sendTo;
+    }
+
     /**
      * Checks whether the cashier is ready and is listening for a response
      * to be put on the queue.
@@ -134,8 +427,8 @@ public class Cashier implements Runnable {
      * processing.
      */
     public void run() {
-        Thread.currentThread().setName("Cashier");
-        connect("purchase", "confirmation");
+        Thread.currentThread().setName(name);
+        connect(receiveFrom, sendToName);
         waitForRequest();
     }
 
@@ -144,8 +437,7 @@ public class Cashier implements Runnable {
      * closing the connections that are open for a clean shutdown.
      */
     public void close() {
-        cancel = true;
-        logger.finest("Close flag set for cashier to signal for the connections to close");
+        stopListening();
         while (true) {
             if (!isListeningToResponse()) {
                 closeConnection();
@@ -162,6 +454,19 @@ public class Cashier implements Runnable {
         }
     }
 
+    /**
+     * Signals the cashier to stop listening for requests without waiting
+     * for it to stop. Used to stop several cashiers at the same time before
+     * waiting on each of them with {@link #close()}.
+     */
+    public void stopListening() {
+        cancel = true;
+        synchronized (stopSignal) {
+            stopSignal.notifyAll();
+        }
+        logger.finest("Close flag set for " + name + " to signal for the connections to close");
+    }
+
     /**
      * Connects to 2 queues that are specified. The {@code receiveFrom} queue
      * is where the {@link Cashier} would get its client's requests from.
@@ -172,11 +477,14 @@ public class Cashier implements Runnable {
      */
     public void connect(String receiveFrom, String sendTo) {
         if (envSetter != null) {
-            context = envSetter.connect();
+            context = isBatchMode() ? envSetter.connect(JMSContext.SESSION_TRANSACTED) : envSetter.connect();
             if (context != null) {
                 try {
                     // Creating the consumer which messages will be received from.
-                    consumer = context.createConsumer(context.createQueue(receiveFrom));
+                    consumer = context.createConsumer(context.createQueue(receiveFrom), selector);
+                    if (selector != null) {
+                        logger.fine(name + " is receiving requests matching: " + selector);
+                    }
 
                     // Creating the producer which messages will be sent to.
                     this.sendTo = context.createQueue(sendTo);
@@ -203,13 +511,20 @@ public class Cashier implements Runnable {
      * te Cashier connections.
      */
     public void waitForRequest() {
-        if (consumer != null && producer != null && context != null) {
+        if (consumer != null && producer != null && context != null && isBatchMode()) {
+            receiveBatches();
+        }
+        else if (consumer != null && producer != null && context != null && isListenerMode()) {
+            listenForRequests();
+        }
+        else if (consumer != null && producer != null && context != null) {
             cancel = false;
             logger.info("Starting to listen for ticket requests");
             while (!cancel) {
                 listeningToResponse = true;
                 Message message = null;
                 try {
+                    passGate();
                     message = consumer.receive(10000); // Wait 10 seconds for a message. If no message is received, the method returns null.
                 }
                 catch (JMSRuntimeException e) {
@@ -220,7 +535,7 @@ public class Cashier implements Runnable {
                 if (message != null) {
                     logger.info("Received message");
                     logger.info("Message received: " + message);
-                    processMessage(message);
+                    processMessage(message, replier((correlationID, outcome, binary) -> sendResponse(context, producer, correlationID, outcome, binary)));
                 }
             }
             logger.info("Stopped listening to responses");
@@ -231,6 +546,288 @@ public class Cashier implements Runnable {
         }
     }
 
+    /**
+     * Receives requests in batches through the transacted context. The
+     * first request of a batch is waited for, the rest are only taken if
+     * they are already on the queue, so a quiet queue does not hold up a
+     * response. Each batch is committed once its responses are sent.
+     */
+    private void receiveBatches() {
+        cancel = false;
+        logger.info("Starting to listen for ticket requests in batches of up to " + batchSize);
+        ArrayList<TicketRequest> deducted = new ArrayList<>();
+        boolean[] sent = new boolean[1];
+        while (!cancel) {
+            listeningToResponse = true;
+            deducted.clear();
+            sent[0] = true;
+            int received = 0;
+            try {
+                passGate();
+                Message message = consumer.receive(10000); // Wait 10 seconds for the first message of a batch.
+                while (message != null) {
+                    received++;
+                    TicketRequest request = processMessage(message,
+                        (correlationID, outcome, binary) -> sent[0] &= sendResponse(context, producer, correlationID, outcome, binary));
+                    if (request != null) {
+                        deducted.add(request);
+                    }
+                    message = (received < batchSize) ? consumer.receiveNoWait() : null;
+                }
+                if (received > 0 && sent[0]) {
+                    context.commit();
+                    logger.fine("Committed batch of " + received + " requests");
+                }
+                else if (received > 0) {
+                    logger.warning("Not every response in the batch could be sent, rolling back " + received + " requests");
+                    rollbackBatch(deducted);
+                }
+            }
+            catch (JMSRuntimeException e) {
+                logger.log(Level.WARNING, "Could not commit batch of " + received + " requests, rolling back", e);
+                rollbackBatch(deducted);
+            }
+        }
+        logger.info("Stopped listening to responses");
+        listeningToResponse = false;
+    }
+
+    /**
+     * Rolls back the current batch so its requests are received again, and
+     * hands back the tickets that were deducted for them.
+     * @param deducted The requests in the batch that had tickets deducted.
+     */
+    private void rollbackBatch(ArrayList<TicketRequest> deducted) {
+        try {
+            context.rollback();
+        }
+        catch (JMSRuntimeException e) {
+            logger.log(Level.WARNING, "Could not roll back batch", e);
+        }
+        if (eventManager != null) {
+            for (TicketRequest request : deducted) {
+                if (processedRequests != null) {
+                    processedRequests.remove(request.getCorrelationID());
+                }
+                eventManager.returnTickets(request.getEventID(), request.getNumberRequested(), request.getCorrelationID());
+            }
+        }
+    }
+
+    /**
+     * Registers a <tt>MessageListener</tt> on the queue that hands each
+     * request to a pool of workers, then waits until the cashier is told to
+     * stop. On stopping, the listener is removed and the requests already
+     * handed over are finished before returning.
+     */
+    private void listenForRequests() {
+        cancel = false;
+        ExecutorService workers;
+        try {
+            if (virtualThreads && VirtualThreads.isAvailable()) {
+                workers = listenOnVirtualThreads();
+            }
+            else {
+                workers = listenOnWorkerPool();
+            }
+        }
+        catch (JMSRuntimeException e) {
+            logger.log(Level.SEVERE, "Could not register listener for ticket requests", e);
+            return;
+        }
+        listeningToResponse = true;
+
+        synchronized (stopSignal) {
+            while (!cancel) {
+                try {
+                    stopSignal.wait();
+                }
+                catch (InterruptedException e) {
+                    logger.warning("Interrupted while listening, stopping the cashier");
+                    Thread.currentThread().interrupt();
+                    cancel = true;
+                }
+            }
+        }
+
+        try {
+            // Closing the consumer waits for the listener to return
+            consumer.close();
+        }
+        catch (JMSRuntimeException e) {
+            logger.log(Level.WARNING, "Could not close consumer down", e);
+        }
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(30, TimeUnit.SECONDS)) {
+                logger.warning("Requests were still being processed after 30 seconds");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (workerContexts) {
+            for (JMSContext workerContext : workerContexts) {
+                try {
+                    workerContext.close();
+                }
+                catch (JMSRuntimeException e) {
+                    logger.log(Level.WARNING, "Could not close context for cashier worker", e);
+                }
+            }
+            workerContexts.clear();
+        }
+        logger.info("Stopped listening to responses");
+        listeningToResponse = false;
+    }
+
+    /**
+     * Registers a listener that hands each request to a bounded pool of
+     * platform threads, each sending replies through its own context.
+     * @return The pool the requests are processed on.
+     */
+    private ExecutorService listenOnWorkerPool() {
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(listenerWorkers, listenerWorkers,
+            60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(listenerQueueDepth),
+            r -> new Thread(r, name + "-worker"), new ThreadPoolExecutor.CallerRunsPolicy());
+        consumer.setMessageListener(message -> {
+            logger.fine("Received message");
+            passGate();
+            workers.execute(() -> processMessage(message,
+                replier((correlationID, outcome, binary) -> sendResponse(workerContext.get(), workerProducer.get(), correlationID, outcome, binary))));
+        });
+        logger.info("Listening for ticket requests with " + listenerWorkers + " workers");
+        return workers;
+    }
+
+    /**
+     * Registers a listener that starts a virtual thread for each request.
+     * The number of requests in flight is capped by the workers and queue
+     * depth settings, the listener waiting for a permit before handing over
+     * the next request. Replies are sent through a small set of contexts
+     * that each request borrows only for the send, so a request waiting on
+     * storage does not hold on to a context.
+     * @return The executor the requests are processed on.
+     */
+    private ExecutorService listenOnVirtualThreads() {
+        ExecutorService workers = VirtualThreads.newPerTaskExecutor();
+        Semaphore inFlight = new Semaphore(listenerWorkers + listenerQueueDepth);
+        BlockingQueue<JMSContext> replyContexts = new ArrayBlockingQueue<>(listenerWorkers);
+        for (int i = 0; i < listenerWorkers; i++) {
+            replyContexts.add(createWorkerContext());
+        }
+        consumer.setMessageListener(message -> {
+            logger.fine("Received message");
+            passGate();
+            inFlight.acquireUninterruptibly();
+            try {
+                workers.execute(() -> {
+                    try {
+                        processMessage(message,
+                            replier((correlationID, outcome, binary) -> sendResponse(replyContexts, correlationID, outcome, binary)));
+                    }
+                    finally {
+                        inFlight.release();
+                    }
+                });
+            }
+            catch (RuntimeException e) {
+                inFlight.release();
+                throw e;
+            }
+        });
+        logger.info("Listening for ticket requests on virtual threads with " + listenerWorkers + " reply contexts");
+        return workers;
+    }
+
+    /**
+     * Waits at the {@link BackpressureGate} if one is set. In listener mode
+     * this holds up the listener, which stops the next request being
+     * delivered.
+     */
+    private void passGate() {
+        if (gate != null) {
+            try {
+                gate.pass();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Sends the response to a request through a context the thread
+     * processing it may use.
+     */
+    @FunctionalInterface
+    private interface Reply {
+        /**
+         * @param correlationID Correlation ID of the request being answered.
+         * @param outcome Text of the response.
+         * @param binary Whether the request, and so the response, is in
+         * the binary format.
+         */
+        void send(String correlationID, String outcome, boolean binary);
+    }
+
+    /**
+     * Wraps the way a thread sends its own responses so that they are
+     * handed to the {@link ConfirmationWriter} instead when one is running.
+     * @param direct Sends a response through the thread's own context.
+     * @return The callback to pass the responses to.
+     */
+    private Reply replier(Reply direct) {
+        ConfirmationWriter writer = confirmationWriter;
+        if (writer == null) {
+            return direct;
+        }
+        return (correlationID, outcome, binary) -> {
+            if (!writer.submit(correlationID, outcome, binary)) {
+                direct.send(correlationID, outcome, binary);
+            }
+        };
+    }
+
+    /**
+     * Borrows a context from those shared by the virtual threads, sends the
+     * response through it and gives it back.
+     * @param replyContexts The contexts not currently in use.
+     * @param correlationID Correlation ID of the request being answered.
+     * @param outcome Text of the response.
+     * @param binary Whether the response is sent in the binary format.
+     */
+    private void sendResponse(BlockingQueue<JMSContext> replyContexts, String correlationID, String outcome, boolean binary) {
+        JMSContext replyContext;
+        try {
+            replyContext = replyContexts.take();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warning("Interrupted waiting to send response for " + correlationID);
+            return;
+        }
+        try {
+            // A JMSProducer is a lightweight object so one is created for each send
+            sendResponse(replyContext, replyContext.createProducer(), correlationID, outcome, binary);
+        }
+        finally {
+            replyContexts.add(replyContext);
+        }
+    }
+
+    /**
+     * Creates a context for the current worker thread on the same connection
+     * as the context of the cashier.
+     * @return A new <tt>JMSContext</tt> for the worker.
+     */
+    private JMSContext createWorkerContext() {
+        JMSContext workerContext = context.createContext(JMSContext.AUTO_ACKNOWLEDGE);
+        workerContexts.add(workerContext);
+        logger.finer("Created context for " + Thread.currentThread().getName());
+        return workerContext;
+    }
+
     /**
      * Closes the connections made when listening for messages.
      * @param context <tt>Context</tt> to be closed down.
@@ -258,91 +855,250 @@ public class Cashier implements Runnable {
     }
 
     /**
-     * Processes the message received and creates a response depending
-     * on the request and abilities of the application.
-     * @param context The current connection context.
-     * @param producer The producer that will be used to send the request.
+     * Processes the message received and works out the response depending
+     * on the request and abilities of the application. A message that can
+     * not be decoded as a request is rejected. The response is passed to
+     * the <tt>reply</tt> callback, which belongs to the thread processing
+     * the message and sends it through a context that thread may use. The
+     * response is in the same format as the request, <b>XML</b> or binary.
      * @param message The message received.
+     * @param reply Called with the correlation ID, the response text and
+     * whether the response is binary.
+     * @return The request if tickets were deducted for it, otherwise null.
      */
-    private void processMessage(Message message) {
-        // Find the event that was requested for
-        Integer eventID = Integer.parseInt(getValueFromMessage(message, "eventID"));
-
-        // Find the number of tickets that were requested
-        Integer numberRequested = Integer.parseInt(getValueFromMessage(message, "numberRequested"));
+    private TicketRequest processMessage(Message message, Reply reply) {
+        metrics.received();
+        boolean binary = RequestDecoder.isBinary(message);
+        if (isStale(message)) {
+            if (dropStaleRequests) {
+                logger.info("Request went stale before it was processed - Dropping it");
+                metrics.dropped();
+            }
+            else {
+                logger.info("Request went stale before it was processed - Creating rejection response");
+                metrics.rejected();
+                reply.send(getCorrelationID(message), "Rejected", binary);
+            }
+            return null;
+        }
 
         /*
-        * Saving the data to a file and editing memory if event manager is set.
-        * Then create a response message and send to the "confirmation" queue.
+        * Requests handled before get the same response again. The request is
+        * reserved in the same step, so a copy of it received while it is
+        * being handled waits for that copy's outcome and is answered with it.
+        * If the outcome is still not known after waiting, no response is
+        * sent for the copy: the thread handling the request will answer with
+        * the same correlation ID, which is all the reseller waits for.
         */
-        TextMessage responseMessage = null;
+        String reservedID = null;
+        if (processedRequests != null) {
+            String messageCorrelationID = getCorrelationID(message);
+            String previousOutcome;
+            try {
+                previousOutcome = processedRequests.reserve(messageCorrelationID, DUPLICATE_WAIT_MILLIS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                previousOutcome = ProcessedRequests.IN_FLIGHT;
+            }
+            if (ProcessedRequests.IN_FLIGHT.equals(previousOutcome)) {
+                logger.info("Request " + messageCorrelationID + " is still being handled - Leaving the response to it");
+                metrics.duplicate();
+                return null;
+            }
+            if (previousOutcome != null) {
+                logger.info("Request " + messageCorrelationID + " was handled before - Sending the same response");
+                metrics.duplicate();
+                reply.send(messageCorrelationID, previousOutcome, binary);
+                return null;
+            }
+            reservedID = messageCorrelationID;
+        }
         try {
-            if (eventManager != null) {
-                try {
-                    this.eventManager.subtractTickets(eventID, numberRequested);
-                    logger.info("Creating accepted response");
-                    responseMessage = context.createTextMessage("Accepted");
-                }
-                catch (CouldNotDeductTicketsException e) {
-                    logger.info(e.getMessage() + " - Creating rejection response");
-                    responseMessage = context.createTextMessage("Rejected");
-                }
+            return handleRequest(message, reply, binary, reservedID);
+        }
+        catch (RuntimeException e) {
+            if (reservedID != null) {
+                processedRequests.remove(reservedID);
             }
-            else {
-                logger.fine("No event manager was set for cashier so tickets could not be deducted");
-                logger.info("Creating rejection response");
-                responseMessage = context.createTextMessage("Rejected");
+            throw e;
+        }
+    }
+
+    /**
+     * Deducts the tickets for a request that was not handled before and
+     * sends the response. The outcome is recorded against the reservation
+     * unless the request failed for a reason that may pass, in which case
+     * the reservation is removed so the request can be tried again.
+     * @param message The message received.
+     * @param reply Called with the correlation ID, the response text and
+     * whether the response is binary.
+     * @param binary Whether the request is binary.
+     * @param reservedID Correlation ID the request was reserved under, or
+     * null if it was not.
+     * @return The request if tickets were deducted for it, otherwise null.
+     */
+    private TicketRequest handleRequest(Message message, Reply reply, boolean binary, String reservedID) {
+        // Requests for sold out events are turned away before the body is read
+        Integer propertyEventID = RequestDecoder.getEventIDProperty(message);
+        if (propertyEventID != null && eventManager != null && eventManager.isSoldOut(propertyEventID)) {
+            logger.info("Event '" + propertyEventID + "' has sold out - Creating rejection response");
+            metrics.soldOut();
+            metrics.rejected();
+            if (reservedID != null) {
+                processedRequests.put(reservedID, "Rejected");
             }
+            reply.send(getCorrelationID(message), "Rejected", binary);
+            return null;
         }
-        catch (JMSRuntimeException e) {
-            logger.warning("Could not create response message, check if connection was created for cashier.");
-            e.printStackTrace();
+
+        TicketRequest request = null;
+        String correlationID = null;
+        try {
+            request = RequestDecoder.decode(message);
+            correlationID = request.getCorrelationID();
+        }
+        catch (MalformedRequestException e) {
+            logger.warning("Could not decode request: " + e.getMessage());
+            metrics.malformed();
+            correlationID = getCorrelationID(message);
         }
 
-        // Sending response message
-        if (sendTo != null) {
+        /*
+        * Saving the data to a file and editing memory if event manager is set.
+        * Then create a response message and send to the "confirmation" queue.
+        */
+        String outcome;
+        boolean mayPass = false;
+        if (request == null) {
+            logger.info("Creating rejection response");
+            outcome = "Rejected";
+        }
+        else if (request.getDeadline() != 0 && request.getDeadline() < System.currentTimeMillis()) {
+            // Binary requests carry their deadline in the body as well
+            logger.info("Request is past the reseller's deadline - Creating rejection response");
+            metrics.pastDeadline();
+            outcome = "Rejected";
+        }
+        else if (eventManager != null) {
             try {
-                responseMessage.setJMSCorrelationID(message.getJMSCorrelationID());
-                producer.send(sendTo, responseMessage);
-                logger.info("Sent response");
+                this.eventManager.subtractTickets(request.getEventID(), request.getNumberRequested(), correlationID);
+                logger.info("Creating accepted response");
+                outcome = "Accepted";
             }
-            catch (JMSException | JMSRuntimeException e) {
-                logger.warning("Could not send message. Encountered a JMS Exception");
-                e.printStackTrace();
+            catch (CouldNotDeductTicketsException e) {
+                logger.info(e.getMessage() + " - Creating rejection response");
+                outcome = "Rejected";
+                // A deduction that could not be saved may succeed if tried again
+                mayPass = e.getCause() != null;
             }
         }
         else {
-            logger.warning("There is no destination of where to send messages to. Not sending anything");
+            logger.fine("No event manager was set for cashier so tickets could not be deducted");
+            logger.info("Creating rejection response");
+            outcome = "Rejected";
+        }
+        if ("Accepted".equals(outcome)) {
+            metrics.accepted();
+        }
+        else {
+            metrics.rejected();
+        }
+        if (reservedID != null && mayPass) {
+            processedRequests.remove(reservedID);
+        }
+        else if (reservedID != null) {
+            processedRequests.put(reservedID, outcome);
         }
+        reply.send(correlationID, outcome, binary);
+        return "Accepted".equals(outcome) ? request : null;
     }
 
     /**
-     * Gets a tag value from a message whilst handling exceptions.
-     * @param xml The XML message
-     * @param tagName The tag name that is requested.
-     * @return A value that corresponds to the tag name requested.
+     * Checks whether a request went stale while it was waiting on the queue,
+     * counting the reason in the {@link RequestMetrics}. Only the message
+     * headers and properties are read.
+     * @param message The message received.
+     * @return True if the request has expired, is past the reseller's
+     * deadline or is older than the maximum age.
      */
-    private String getValueFromMessage(Message xml, String tagName) {
-        String temp = null;
+    private boolean isStale(Message message) {
+        long now = System.currentTimeMillis();
         try {
-            temp = getTagValue(xml.getBody(String.class), tagName);
-        }
-        catch (ArrayIndexOutOfBoundsException | JMSRuntimeException | JMSException e) {
-            logger.warning("Could not get value '" + tagName + "' from XML");
-            if (e instanceof JMSRuntimeException) {
-                logger.log(Level.SEVERE, "Encountered JMS exception", e);
+            long expiration = message.getJMSExpiration();
+            if (expiration != 0 && expiration < now) {
+                metrics.expired();
+                return true;
             }
+            if (message.propertyExists(RequestDecoder.DEADLINE_PROPERTY)
+                && message.getLongProperty(RequestDecoder.DEADLINE_PROPERTY) < now) {
+                metrics.pastDeadline();
+                return true;
+            }
+            long timestamp = message.getJMSTimestamp();
+            if (maxRequestAge > 0 && timestamp != 0 && now - timestamp > maxRequestAge) {
+                metrics.tooOld();
+                return true;
+            }
+        }
+        catch (JMSException | JMSRuntimeException | NumberFormatException e) {
+            logger.fine("Could not read the times of the request, treating it as current");
         }
-        return temp;
+        return false;
     }
 
     /**
-     * Gets the tag value from XML
-     * @param xml The XML string.
-     * @param tagName The tag name that is requested.
-     * @return A value that corresponds to the tag name requested.
+     * Gets the correlation ID of a message that could not be decoded.
+     * @param message The message received.
+     * @return The correlation ID, or null if it could not be read.
      */
-    private String getTagValue(String xml, String tagName){
-        return xml.split("<"+tagName+">")[1].split("</"+tagName+">")[0];
+    private String getCorrelationID(Message message) {
+        try {
+            return message.getJMSCorrelationID();
+        }
+        catch (JMSException | JMSRuntimeException e) {
+            logger.warning("Could not get correlation ID from message");
+            return null;
+        }
+    }
+
+    /**
+     * Creates a response message and sends it to the {@code confirmation}
+     * queue.
+     * @param replyContext The <tt>JMSContext</tt> belonging to the thread
+     * sending the response.
+     * @param replyProducer A <tt>JMSProducer</tt> created from that context.
+     * @param correlationID Correlation ID of the request being answered.
+     * @param outcome Text of the response.
+     * @param binary Whether the response is sent in the binary format.
+     * @return True if the response was sent.
+     */
+    private boolean sendResponse(JMSContext replyContext, JMSProducer replyProducer, String correlationID, String outcome, boolean binary) {
+        Message responseMessage = null;
+        try {
+            responseMessage = ResponseEncoder.create(replyContext, outcome, binary);
+        }
+        catch (JMSException | JMSRuntimeException e) {
+            logger.warning("Could not create response message, check if connection was created for cashier.");
+            e.printStackTrace();
+        }
+
+        // Sending response message
+        if (sendTo != null && responseMessage != null) {
+            try {
+                responseMessage.setJMSCorrelationID(correlationID);
+                replyProducer.send(sendTo, responseMessage);
+                logger.info("Sent response");
+                return true;
+            }
+            catch (JMSException | JMSRuntimeException e) {
+                logger.warning("Could not send message. Encountered a JMS Exception");
+                e.printStackTrace();
+            }
+        }
+        else {
+            logger.warning("There is no destination of where to send messages to. Not sending anything");
+        }
+        return false;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,261 @@
+package com.ibm.mq.badge;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.logging.Logger;
+
+/**
+ * Runs a number of {@link Cashier} workers that all listen to the same
+ * {@code purchase} queue. Each worker creates its own <tt>JMSContext</tt>
+ * and <tt>JMSConsumer</tt> through the shared {@link EnvSetter}, so that
+ * requests are taken off the queue in parallel, while ticket deductions
+ * go through the one shared {@link EventManager}.
+ * @version 1.0
+ * @see Cashier
+ * @see Settings
+ */
+public class CashierPool {
+    private static final Logger logger = Logger.getLogger("com.ibm.mq.badge");
+
+    /**
+     * The workers that belong to this pool.
+     */
+    private ArrayList<Cashier> cashiers = new ArrayList<>();
+
+    /**
+     * The {@link EventManager} shared by every worker.
+     */
+    private EventManager eventManager = null;
+
+    /**
+     * Counts the requests handled by every worker.
+     */
+    private RequestMetrics metrics = new RequestMetrics();
+
+    /**
+     * The threads the workers are running on.
+     */
+    private ArrayList<Thread> threads = new ArrayList<>();
+
+    /**
+     * Whether the workers run on virtual threads.
+     */
+    private boolean virtualThreads = false;
+
+    /**
+     * Creates a pool of {@link Cashier} workers. The workers are not
+     * started until {@link #start(String, String)} is called.
+     * @param eventManager The {@link EventManager} shared by every worker.
+     * @param envSetter The {@link EnvSetter} used by every worker to create
+     * its own MQ connection.
+     * @param workers Number of workers to create. At least one worker is
+     * always created.
+     */
+    public CashierPool(EventManager eventManager, EnvSetter envSetter, int workers) {
+        this.eventManager = eventManager;
+        int size = Math.max(1, workers);
+        for (int i = 1; i <= size; i++) {
+            Cashier cashier = new Cashier(eventManager, envSetter);
+            cashier.setName("Cashier-" + i);
+            cashier.setMetrics(metrics);
+            cashiers.add(cashier);
+        }
+        logger.fine("Created pool of " + size + " cashiers");
+    }
+
+    /**
+     * Switches every worker in the pool to listener mode.
+     * @param workers Number of threads each cashier processes requests on.
+     * @param queueDepth Number of requests that can wait for a free thread
+     * in each cashier.
+     * @see Cashier#setListenerMode(int, int)
+     */
+    public void setListenerMode(int workers, int queueDepth) {
+        for (Cashier cashier : cashiers) {
+            cashier.setListenerMode(workers, queueDepth);
+        }
+    }
+
+    /**
+     * Splits the events between the workers. The event IDs known to the
+     * {@link EventManager} are sorted and cut into one contiguous range per
+     * worker, and each worker is given a message selector on the
+     * <tt>eventID</tt> property for its range, so requests for an event are
+     * only ever taken by the one worker. The ranges meet with no gaps
+     * between them, each one starting just after the last ID of the range
+     * before, so a request for an ID that is not loaded is still taken by
+     * a worker and rejected. The first range also takes requests without
+     * the property and any lower IDs, and the last range is left open for
+     * events added later. If there are more workers than events, the extra
+     * workers share the ranges.
+     * @see RequestDecoder#EVENT_ID_PROPERTY
+     */
+    public void shardByEvent() {
+        ArrayList<Integer> ids = new ArrayList<>(eventManager.getBookableEvents().keySet());
+        if (ids.isEmpty()) {
+            logger.warning("No events to shard the cashiers by, every cashier will receive every request");
+            return;
+        }
+        Collections.sort(ids);
+        int shards = Math.min(cashiers.size(), ids.size());
+        String property = RequestDecoder.EVENT_ID_PROPERTY;
+        for (int i = 0; i < cashiers.size(); i++) {
+            int shard = i % shards;
+            int previousLast = (shard > 0) ? ids.get(shard * ids.size() / shards - 1) : 0;
+            int last = ids.get((shard + 1) * ids.size() / shards - 1);
+            String selector;
+            if (shards == 1) {
+                selector = null;
+            }
+            else if (shard == 0) {
+                selector = property + " IS NULL OR " + property + " <= " + last;
+            }
+            else if (shard == shards - 1) {
+                selector = property + " > " + previousLast;
+            }
+            else {
+                selector = property + " > " + previousLast + " AND " + property + " <= " + last;
+            }
+            cashiers.get(i).setSelector(selector);
+        }
+        logger.info("Sharded " + ids.size() + " events between " + shards + " cashier ranges");
+    }
+
+    /**
+     * Sets the cache every worker uses to answer requests received more
+     * than once.
+     * @param processedRequests The cache, or null to handle every request.
+     * @see Cashier#setProcessedRequests(ProcessedRequests)
+     */
+    public void setProcessedRequests(ProcessedRequests processedRequests) {
+        for (Cashier cashier : cashiers) {
+            cashier.setProcessedRequests(processedRequests);
+        }
+    }
+
+    /**
+     * Sets the gate every worker passes before taking a request.
+     * @param gate The gate, or null to take requests as fast as they come.
+     * @see Cashier#setGate(BackpressureGate)
+     */
+    public void setGate(BackpressureGate gate) {
+        for (Cashier cashier : cashiers) {
+            cashier.setGate(gate);
+        }
+    }
+
+    /**
+     * Sets the writer every worker hands its responses to.
+     * @param confirmationWriter The writer, or null for the workers to send
+     * their own responses.
+     * @see Cashier#setConfirmationWriter(ConfirmationWriter)
+     */
+    public void setConfirmationWriter(ConfirmationWriter confirmationWriter) {
+        for (Cashier cashier : cashiers) {
+            cashier.setConfirmationWriter(confirmationWriter);
+        }
+    }
+
+    /**
+     * Sets every worker to receive requests in transacted batches.
+     * @param batchSize Largest number of requests in a batch.
+     * @see Cashier#setBatchSize(int)
+     */
+    public void setBatchSize(int batchSize) {
+        for (Cashier cashier : cashiers) {
+            cashier.setBatchSize(batchSize);
+        }
+    }
+
+    /**
+     * Runs every worker, and each request a worker processes in listener
+     * mode, on a virtual thread when the Java runtime provides them.
+     * @param virtualThreads True to use virtual threads.
+     * @see VirtualThreads
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+        for (Cashier cashier : cashiers) {
+            cashier.setVirtualThreads(virtualThreads);
+        }
+        if (virtualThreads && !VirtualThreads.isAvailable()) {
+            logger.warning("Virtual threads are not available in this Java runtime, using platform threads");
+        }
+    }
+
+    public RequestMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets how every worker treats requests that went stale on the queue.
+     * @param maxRequestAge Age in milliseconds after which a request is
+     * stale, or 0 for no limit.
+     * @param dropStaleRequests True to drop stale requests without a
+     * response, false to reject them.
+     * @see Cashier#setMaxRequestAge(long)
+     * @see Cashier#setDropStaleRequests(boolean)
+     */
+    public void setStaleRequests(long maxRequestAge, boolean dropStaleRequests) {
+        for (Cashier cashier : cashiers) {
+            cashier.setMaxRequestAge(maxRequestAge);
+            cashier.setDropStaleRequests(dropStaleRequests);
+        }
+    }
+
+    public int size() {
+        return cashiers.size();
+    }
+
+    /**
+     * Starts every worker on its own thread. Each worker connects to the
+     * queues given and starts listening for requests.
+     * @param receiveFrom A destination to receive messages from.
+     * @param sendTo A destination to send messages to.
+     */
+    public void start(String receiveFrom, String sendTo) {
+        for (Cashier cashier : cashiers) {
+            cashier.setDestinations(receiveFrom, sendTo);
+            threads.add(VirtualThreads.start(cashier.getName(), cashier, virtualThreads));
+        }
+        logger.info("Started " + cashiers.size() + " cashiers");
+    }
+
+    /**
+     * Checks whether every worker in the pool is ready and listening for
+     * requests.
+     * @return True if all the cashiers are listening.
+     */
+    public boolean isListeningToResponse() {
+        for (Cashier cashier : cashiers) {
+            if (!cashier.isListeningToResponse()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Signals every worker to stop listening, then waits for each one to
+     * close its connections. All workers are signalled first so they stop
+     * in parallel rather than one after another.
+     */
+    public void close() {
+        for (Cashier cashier : cashiers) {
+            cashier.stopListening();
+        }
+        for (Cashier cashier : cashiers) {
+            cashier.close();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                logger.warning("Interrupted while waiting for " + thread.getName() + " to finish");
+                Thread.currentThread().interrupt();
+            }
+        }
+        logger.finer("All cashiers in the pool have closed");
+    }
+}
@@ -0,0 +1,242 @@
+package com.ibm.mq.badge;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.function.Consumer;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Reads the data file written by the {@link StorageManager} one event at a
+ * time, rather than reading the whole file into one string and parsing it
+ * into one JSON object. The file is read through a buffer and the text of
+ * each element of the events array is handed over as soon as its closing
+ * brace is read, so only one event is held as text at a time.
+ *
+ * <p>Only the outer object and the events array are walked by this class.
+ * Each element, and each value under any other key of the outer object,
+ * is small and is left for <tt>org.json</tt> to parse.
+ * @version 1.0
+ * @see EventManager
+ */
+public class CatalogueReader implements Closeable {
+    private final String filename;
+    private final String arrayKey;
+    private final BufferedReader reader;
+
+    /**
+     * The character read ahead of the current position, or -2 if none has
+     * been read ahead.
+     */
+    private int peeked = -2;
+
+    /**
+     * Reused for the text of each value read.
+     */
+    private final StringBuilder text = new StringBuilder();
+
+    private boolean foundArray = false;
+    private int elements = 0;
+
+    /**
+     * Opens a data file to be read.
+     * @param filename File to read.
+     * @param arrayKey Key of the outer object the events array is under, or
+     * null to pass over the elements of every array under the outer object.
+     * @throws IOException Thrown when the file could not be opened.
+     */
+    public CatalogueReader(String filename, String arrayKey) throws IOException {
+        this.filename = filename;
+        this.arrayKey = arrayKey;
+        this.reader = Files.newBufferedReader(Paths.get(filename), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the file from start to end, passing the text of each element of
+     * the events array to <tt>element</tt> in the order they are held.
+     * @param element Called with the <b>JSON</b> text of each element.
+     * @return The values under every other key of the outer object, or null
+     * if the file is empty.
+     * @throws IOException Thrown when the file could not be read.
+     * @throws JSONException Thrown when the file is not a <b>JSON</b>
+     * object.
+     */
+    public JSONObject read(Consumer<String> element) throws IOException, JSONException {
+        JSONObject others = new JSONObject();
+        int c = skipWhitespace();
+        if (c < 0) {
+            return null;
+        }
+        expect(c, '{');
+        c = skipWhitespace();
+        if (c == '}') {
+            return others;
+        }
+        while (true) {
+            peeked = c;
+            String key = readKey();
+            expect(skipWhitespace(), ':');
+            c = skipWhitespace();
+            if ((arrayKey == null || key.equals(arrayKey)) && c == '[') {
+                foundArray = true;
+                readArray(element);
+            }
+            else {
+                peeked = c;
+                others.put(key, parse(readValue()));
+            }
+            c = skipWhitespace();
+            if (c == '}') {
+                return others;
+            }
+            expect(c, ',');
+            c = skipWhitespace();
+        }
+    }
+
+    /**
+     * Whether the events array was found by the last call to
+     * {@link #read(Consumer)}.
+     */
+    public boolean foundArray() {
+        return foundArray;
+    }
+
+    /**
+     * Number of elements of the events array passed over.
+     */
+    public int getElements() {
+        return elements;
+    }
+
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    /**
+     * Reads the elements of the events array, the opening bracket having
+     * been read.
+     */
+    private void readArray(Consumer<String> element) throws IOException {
+        int c = skipWhitespace();
+        if (c == ']') {
+            return;
+        }
+        while (true) {
+            peeked = c;
+            element.accept(readValue());
+            elements++;
+            c = skipWhitespace();
+            if (c == ']') {
+                return;
+            }
+            expect(c, ',');
+            c = skipWhitespace();
+        }
+    }
+
+    /**
+     * Reads the text of one value, keeping track of strings and of how
+     * deeply objects and arrays are nested to find where it ends.
+     * @return The text of the value.
+     */
+    private String readValue() throws IOException {
+        text.setLength(0);
+        int depth = 0;
+        boolean inString = false;
+        boolean escaped = false;
+        while (true) {
+            int c = next();
+            if (c < 0) {
+                throw syntaxError("Unexpected end of file");
+            }
+            if (inString) {
+                text.append((char) c);
+                if (escaped) {
+                    escaped = false;
+                }
+                else if (c == '\\') {
+                    escaped = true;
+                }
+                else if (c == '"') {
+                    inString = false;
+                    if (depth == 0) {
+                        return text.toString();
+                    }
+                }
+                continue;
+            }
+            if (depth == 0 && text.length() > 0 && (c == ',' || c == '}' || c == ']' || Character.isWhitespace(c))) {
+                // End of a number, boolean or null
+                peeked = c;
+                return text.toString();
+            }
+            text.append((char) c);
+            if (c == '"') {
+                inString = true;
+            }
+            else if (c == '{' || c == '[') {
+                depth++;
+            }
+            else if (c == '}' || c == ']') {
+                depth--;
+                if (depth == 0) {
+                    return text.toString();
+                }
+                if (depth < 0) {
+                    throw syntaxError("Unexpected '" + (char) c + "'");
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a key of the outer object.
+     * @return The key.
+     * @throws JSONException Thrown when the key is not a string.
+     */
+    private String readKey() throws IOException, JSONException {
+        Object key = parse(readValue());
+        if (!(key instanceof String)) {
+            throw syntaxError("Expected a string key but found '" + key + "'");
+        }
+        return (String) key;
+    }
+
+    private Object parse(String value) throws JSONException {
+        return new JSONTokener(value).nextValue();
+    }
+
+    private int next() throws IOException {
+        if (peeked != -2) {
+            int c = peeked;
+            peeked = -2;
+            return c;
+        }
+        return reader.read();
+    }
+
+    private int skipWhitespace() throws IOException {
+        int c = next();
+        while (c >= 0 && Character.isWhitespace(c)) {
+            c = reader.read();
+        }
+        return c;
+    }
+
+    private void expect(int c, char wanted) throws JSONException {
+        if (c != wanted) {
+            throw syntaxError((c < 0) ? "Unexpected end of file" : "Expected '" + wanted + "' but found '" + (char) c + "'");
+        }
+    }
+
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + " in '" + filename + "'");
+    }
+}
@@ -0,0 +1,291 @@
+package com.ibm.mq.badge;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.jms.CompletionListener;
+import javax.jms.Destination;
+import javax.jms.JMSContext;
+import javax.jms.JMSException;
+import javax.jms.JMSProducer;
+import javax.jms.JMSRuntimeException;
+import javax.jms.Message;
+
+/**
+ * Sends the responses of the {@link Cashier} workers to the
+ * {@code confirmation} queue from a thread of its own. Cashiers hand each
+ * response over with {@link #submit(String, String, boolean)} and carry on with the
+ * next request, rather than waiting for the queue manager to take every
+ * response.
+ *
+ * <p>Responses wait in a bounded queue and are taken off it in bursts. Each
+ * one is sent asynchronously with a <tt>CompletionListener</tt> where the
+ * provider supports it, and the number of sends not yet completed is
+ * capped, so a slow queue manager slows the cashiers down rather than
+ * letting responses pile up in memory. If asynchronous send is not
+ * supported the responses are sent one after another.
+ * @version 1.0
+ * @see Cashier
+ * @see Settings#CONFIRMATION_WRITER
+ */
+public class ConfirmationWriter implements Runnable {
+    private static final Logger logger = Logger.getLogger("com.ibm.mq.badge");
+
+    /**
+     * A response waiting to be sent.
+     */
+    private static class Response {
+        private final String correlationID;
+        private final String outcome;
+        private final boolean binary;
+
+        Response(String correlationID, String outcome, boolean binary) {
+            this.correlationID = correlationID;
+            this.outcome = outcome;
+            this.binary = binary;
+        }
+    }
+
+    private final EnvSetter envSetter;
+    private final String sendToName;
+    private final BlockingQueue<Response> pending;
+    private final int maxOutstanding;
+
+    /**
+     * Permits for sends that have not completed yet.
+     */
+    private final Semaphore outstanding;
+
+    private volatile boolean running = false;
+    private Thread thread = null;
+    private JMSContext context = null;
+
+    /**
+     * Gives back the permit of each send once the queue manager has taken
+     * it, or it has failed.
+     */
+    private final CompletionListener completionListener = new CompletionListener() {
+        @Override
+        public void onCompletion(Message message) {
+            outstanding.release();
+        }
+
+        @Override
+        public void onException(Message message, Exception exception) {
+            outstanding.release();
+            logger.log(Level.WARNING, "Could not send response", exception);
+        }
+    };
+
+    /**
+     * Creates a writer for the queue given. Nothing is sent until
+     * {@link #start()} is called.
+     * @param envSetter The {@link EnvSetter} used to create the writer's
+     * own MQ connection.
+     * @param sendTo Name of the queue the responses are sent to.
+     * @param queueDepth Number of responses that can wait to be sent before
+     * cashiers are made to wait.
+     * @param maxOutstanding Number of sends that can be waiting for the
+     * queue manager at once.
+     */
+    public ConfirmationWriter(EnvSetter envSetter, String sendTo, int queueDepth, int maxOutstanding) {
+        this.envSetter = envSetter;
+        this.sendToName = sendTo;
+        this.pending = new ArrayBlockingQueue<>(Math.max(1, queueDepth));
+        this.maxOutstanding = Math.max(1, maxOutstanding);
+        this.outstanding = new Semaphore(this.maxOutstanding);
+    }
+
+    /**
+     * Connects to MQ and starts the thread that sends the responses.
+     * @return True if the writer is running.
+     */
+    public boolean start() {
+        context = envSetter.connect();
+        if (context == null) {
+            logger.warning("Could not connect the confirmation writer, cashiers will send their own responses");
+            return false;
+        }
+        running = true;
+        thread = new Thread(this, "ConfirmationWriter");
+        thread.start();
+        return true;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Hands a response over to be sent. Waits if too many responses are
+     * already waiting.
+     * @param correlationID Correlation ID of the request being answered.
+     * @param outcome Text of the response.
+     * @param binary Whether the response is sent in the binary format.
+     * @return True if the response was taken, false if the writer is not
+     * running and the caller should send it itself.
+     */
+    public boolean submit(String correlationID, String outcome, boolean binary) {
+        if (!running) {
+            return false;
+        }
+        try {
+            pending.put(new Response(correlationID, outcome, binary));
+            return true;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Takes responses off the queue in bursts and sends them until the
+     * writer is closed and every response handed over has been sent.
+     */
+    public void run() {
+        Destination sendTo = context.createQueue(sendToName);
+        JMSProducer producer = context.createProducer();
+        boolean async = true;
+        try {
+            producer.setAsync(completionListener);
+        }
+        catch (JMSRuntimeException | UnsupportedOperationException e) {
+            logger.info("Asynchronous send is not supported, responses will be sent one after another");
+            async = false;
+        }
+
+        ArrayList<Response> burst = new ArrayList<>();
+        int sent = 0;
+        boolean interrupted = false;
+        while (running || !pending.isEmpty()) {
+            try {
+                Response first = pending.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                burst.add(first);
+                pending.drainTo(burst, maxOutstanding - 1);
+                for (sent = 0; sent < burst.size(); sent++) {
+                    if (async) {
+                        outstanding.acquire();
+                    }
+                    send(producer, sendTo, burst.get(sent), async);
+                }
+                logger.finest("Sent burst of " + burst.size() + " responses");
+            }
+            catch (InterruptedException e) {
+                // The rest of the burst has already been taken off the queue
+                logger.warning("Confirmation writer was interrupted, sending the responses left one after another");
+                running = false;
+                sendRemaining(producer, sendTo, burst, sent, async);
+                interrupted = true;
+                break;
+            }
+            finally {
+                burst.clear();
+                sent = 0;
+            }
+        }
+        waitForOutstanding();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sends the responses left in a burst that was cut short, then those
+     * still on the queue, each waiting for the queue manager to take it.
+     * They are confirmations of tickets already deducted, so are sent even
+     * though the writer is stopping.
+     * @param producer The producer of the writer's context.
+     * @param sendTo The queue to send to.
+     * @param burst The burst being sent.
+     * @param sent Number of responses of the burst already sent.
+     * @param async Whether the producer was sending asynchronously.
+     */
+    private void sendRemaining(JMSProducer producer, Destination sendTo, ArrayList<Response> burst, int sent, boolean async) {
+        if (async) {
+            try {
+                producer.setAsync(null);
+            }
+            catch (JMSRuntimeException e) {
+                logger.log(Level.WARNING, "Could not stop sending asynchronously", e);
+            }
+        }
+        ArrayList<Response> remaining = new ArrayList<>(burst.subList(sent, burst.size()));
+        pending.drainTo(remaining);
+        for (Response response : remaining) {
+            send(producer, sendTo, response, false);
+        }
+        logger.info("Sent " + remaining.size() + " responses left when the confirmation writer was interrupted");
+    }
+
+    /**
+     * Sends one response.
+     * @param producer The producer of the writer's context.
+     * @param sendTo The queue to send to.
+     * @param response The response to send.
+     * @param async Whether the producer sends asynchronously, in which
+     * case a permit is already held for the send.
+     */
+    private void send(JMSProducer producer, Destination sendTo, Response response, boolean async) {
+        try {
+            Message message = ResponseEncoder.create(context, response.outcome, response.binary);
+            message.setJMSCorrelationID(response.correlationID);
+            producer.send(sendTo, message);
+        }
+        catch (JMSException | JMSRuntimeException e) {
+            if (async) {
+                outstanding.release();
+            }
+            logger.log(Level.WARNING, "Could not send response for " + response.correlationID, e);
+        }
+    }
+
+    /**
+     * Waits for the sends still waiting for the queue manager to complete.
+     */
+    private void waitForOutstanding() {
+        try {
+            if (!outstanding.tryAcquire(maxOutstanding, 30, TimeUnit.SECONDS)) {
+                logger.warning("Some responses had still not been sent after 30 seconds");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops taking responses, waits for those already handed over to be
+     * sent and closes the writer's connection. Cashiers should be closed
+     * first so nothing is handed over afterwards.
+     */
+    public void close() {
+        running = false;
+        if (thread != null) {
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                logger.warning("Interrupted while waiting for the confirmation writer to finish");
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (context != null) {
+            try {
+                context.close();
+            }
+            catch (JMSRuntimeException e) {
+                logger.log(Level.WARNING, "Could not close context for confirmation writer", e);
+            }
+        }
+        logger.finer("Confirmation writer has closed");
+    }
+}
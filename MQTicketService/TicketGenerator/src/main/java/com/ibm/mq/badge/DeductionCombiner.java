@@ -0,0 +1,156 @@
+package com.ibm.mq.badge;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Collects the deductions requested for one event so that they can be
+ * applied together. Each request is queued, then the thread that gets the
+ * combiner's lock takes every request waiting, including those of other
+ * threads, grants or rejects them in the order they arrived and writes one
+ * journal record for all the tickets granted. Threads that do not get the
+ * lock park until their request is done, and are woken by the thread that
+ * handled it, so they do not wait for the lock behind later passes.
+ *
+ * <p>There is one combiner per event, so a popular event only holds up the
+ * requests for that event.
+ * @version 1.0
+ * @see EventManager
+ * @see DeductionJournal
+ */
+public class DeductionCombiner {
+    /**
+     * Largest number of requests handled in one pass, so that the thread
+     * combining is not kept busy forever while requests keep arriving.
+     */
+    static final int MAX_PER_PASS = 256;
+
+    /**
+     * Longest time a waiting thread parks before checking the lock again,
+     * in case it was not woken.
+     */
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * A request for tickets waiting to be combined.
+     */
+    public static class Request {
+        private final int numberRequested;
+        private final String correlationID;
+        private final Thread waiter = Thread.currentThread();
+        private volatile boolean done = false;
+        private volatile boolean granted = false;
+        private volatile String reason = null;
+        private volatile Throwable failure = null;
+
+        public Request(int numberRequested, String correlationID) {
+            this.numberRequested = numberRequested;
+            this.correlationID = correlationID;
+        }
+
+        public int getNumberRequested() {
+            return numberRequested;
+        }
+
+        public String getCorrelationID() {
+            return correlationID;
+        }
+
+        public boolean isDone() {
+            return done;
+        }
+
+        public boolean isGranted() {
+            return granted;
+        }
+
+        /**
+         * @return Why the request was rejected, or null if it was granted.
+         */
+        public String getReason() {
+            return reason;
+        }
+
+        /**
+         * @return Why the deduction could not be saved, or null if the
+         * request was granted or turned away for lack of tickets.
+         */
+        public Throwable getFailure() {
+            return failure;
+        }
+
+        /**
+         * Marks the request as granted.
+         */
+        void grant() {
+            granted = true;
+            done = true;
+            LockSupport.unpark(waiter);
+        }
+
+        /**
+         * Marks the request as rejected.
+         * @param reason Why the request was rejected.
+         */
+        void reject(String reason) {
+            reject(reason, null);
+        }
+
+        /**
+         * Marks the request as rejected because its deduction could not be
+         * saved.
+         * @param reason Why the request was rejected.
+         * @param failure The error that stopped the deduction being saved.
+         */
+        void reject(String reason, Throwable failure) {
+            this.reason = reason;
+            this.failure = failure;
+            granted = false;
+            done = true;
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Request> waiting = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Queues a request and waits until it has been granted or rejected,
+     * either by this thread or by another thread holding the lock.
+     * @param request The request, created by the calling thread.
+     * @param pass Handles the requests waiting. Called holding the lock.
+     */
+    void submit(Request request, Runnable pass) {
+        waiting.add(request);
+        while (!request.isDone()) {
+            if (lock.tryLock()) {
+                try {
+                    while (!request.isDone()) {
+                        pass.run();
+                    }
+                }
+                finally {
+                    lock.unlock();
+                }
+                // Wake the oldest thread still waiting to take over combining
+                Request next = waiting.peek();
+                if (next != null) {
+                    LockSupport.unpark(next.waiter);
+                }
+            }
+            else {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Takes the next request waiting.
+     * @return The oldest request waiting, or null if there are none.
+     */
+    Request poll() {
+        return waiting.poll();
+    }
+}
@@ -0,0 +1,691 @@
+package com.ibm.mq.badge;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import com.ibm.mq.exceptions.DataDidNotSaveException;
+
+/**
+ * An append-only journal of ticket deductions. Rather than rewriting every
+ * event each time tickets are sold, each sale is written as one small line
+ * on the end of the journal. The journal is folded back into the main data
+ * file from time to time by the {@link EventManager}, after which it is
+ * emptied.
+ *
+ * <p>Each line of the journal holds, separated by spaces:
+ * <ul>
+ * <li><tt>sequence</tt> - Number of the record, increasing by one per record.
+ * <li><tt>timestamp</tt> - Time the record was written in milliseconds.
+ * <li><tt>eventID</tt> - ID of the event the tickets belong to.
+ * <li><tt>delta</tt> - Change in tickets left, negative for a sale.
+ * <li><tt>correlationID</tt> - Correlation ID of the request, or <tt>-</tt>.
+ * A record written for several requests at once holds their correlation
+ * IDs separated by commas. Any <tt>%</tt>, comma, space or control
+ * character in an ID is written as <tt>%</tt> and two hex digits, as is an
+ * ID of just <tt>-</tt>, so every ID is read back exactly as it was sent.
+ * </ul>
+ * The data file records the sequence it was written at, so records already
+ * held in the data file are skipped when the journal is replayed.
+ *
+ * <p>With group commit turned on, records are not written straight away.
+ * A background flusher collects the records appended within a window of
+ * time, or up to a number of records, writes them in one go and forces
+ * them to disk. Each call to {@link #append(int, int, String)} waits until
+ * its record is on disk, so a sale is only confirmed once it is durable.
+ *
+ * <p>When an {@link InventorySnapshot} is set, each record is applied to it
+ * once the record is on disk, in the order of the sequence.
+ * @version 1.0
+ * @see StorageManager
+ * @see EventManager
+ */
+public class DeductionJournal {
+    private static final Logger logger = Logger.getLogger("com.ibm.mq.badge");
+
+    /**
+     * Written in place of a correlation ID when a request did not have one.
+     */
+    private static final String NO_CORRELATION_ID = "-";
+
+    /**
+     * Digits used to write the characters escaped in a correlation ID.
+     */
+    private static final String HEX_DIGITS = "0123456789ABCDEF";
+
+    /**
+     * The file the journal is written to.
+     */
+    private Path path;
+
+    /**
+     * Channel open for appending records, set once the journal is recovered.
+     */
+    private FileChannel channel = null;
+
+    /**
+     * Sequence number of the last record written.
+     */
+    private long sequence = 0;
+
+    /**
+     * Number of records held in the journal since it was last emptied.
+     */
+    private int records = 0;
+
+    /**
+     * Whether records are written by the background flusher in batches.
+     */
+    private boolean groupCommit = false;
+
+    /**
+     * Longest time in nanoseconds a record waits for others to join its batch.
+     */
+    private long windowNanos = 0;
+
+    /**
+     * Number of records that causes a batch to be written straight away.
+     */
+    private int maxRecords = 1;
+
+    /**
+     * Records waiting to be written by the flusher, the number of them and
+     * when the first one was added.
+     */
+    private StringBuilder pending = new StringBuilder();
+    private int pendingRecords = 0;
+    private long pendingSince = 0;
+
+    /**
+     * When the records waiting for the flusher started to wait, and when the
+     * records being written to disk started to wait, in nanoseconds. Each is
+     * 0 when there are no such records. Read without the lock to show how
+     * far writing to disk is behind the sales.
+     */
+    private volatile long waitingSince = 0;
+    private volatile long writingSince = 0;
+
+    /**
+     * Run each time records have been written, can be null.
+     */
+    private volatile Runnable flushListener = null;
+
+    /**
+     * Completed once the records waiting to be written are on disk.
+     */
+    private CompletableFuture<Void> pendingBatch = null;
+
+    /**
+     * Records waiting to be written by the flusher, kept to be applied to
+     * the snapshot once they are on disk. Only kept when a snapshot is set.
+     */
+    private ArrayList<Record> pendingForSnapshot = new ArrayList<>();
+
+    /**
+     * Snapshot the records are applied to once on disk, can be null.
+     */
+    private InventorySnapshot snapshot = null;
+
+    /**
+     * Thread writing batches of records when group commit is on.
+     */
+    private Thread flusher = null;
+
+    /**
+     * Held while writing to or emptying the file so the flusher can write
+     * without holding up appends to the next batch.
+     */
+    private final Object channelLock = new Object();
+
+    /**
+     * Number of batches and records written by the flusher.
+     */
+    private long batchesWritten = 0;
+    private long batchedRecords = 0;
+
+    /**
+     * A single deduction read back from the journal.
+     */
+    public static class Record {
+        private final long sequence;
+        private final long timestamp;
+        private final int eventID;
+        private final int delta;
+        private final List<String> correlationIDs;
+
+        public Record(long sequence, long timestamp, int eventID, int delta, List<String> correlationIDs) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.eventID = eventID;
+            this.delta = delta;
+            this.correlationIDs = correlationIDs;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public int getEventID() {
+            return eventID;
+        }
+
+        public int getDelta() {
+            return delta;
+        }
+
+        /**
+         * @return The correlation IDs of the requests the record was written
+         * for, empty if none had one.
+         */
+        public List<String> getCorrelationIDs() {
+            return correlationIDs;
+        }
+    }
+
+    /**
+     * Creates a journal that will be written to the file given. Nothing is
+     * read or written until {@link #recover(long, Consumer)} is called.
+     * @param filename The file the journal is written to.
+     */
+    public DeductionJournal(String filename) {
+        this.path = Paths.get(filename);
+    }
+
+    public String getFilename() {
+        return path.toString();
+    }
+
+    /**
+     * Sets the snapshot each record is applied to once it is on disk. Should
+     * be set once the snapshot holds every record already in the journal.
+     * @param snapshot The snapshot, or null to stop applying records.
+     */
+    public synchronized void setSnapshot(InventorySnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Gets the sequence number of the last record written.
+     * @return The last sequence number.
+     */
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Gets the number of records held since the journal was last emptied.
+     * @return The number of records.
+     */
+    public synchronized int size() {
+        return records;
+    }
+
+    /**
+     * Gets how long the oldest record not yet on disk has been waiting to
+     * be written. Shows how far writing to disk is behind the sales, and
+     * keeps growing while a write is held up, however few records wait.
+     * @return The time in milliseconds, 0 when every record is on disk.
+     */
+    public int getFlushLagMillis() {
+        long since = writingSince;
+        if (since == 0) {
+            since = waitingSince;
+        }
+        if (since == 0) {
+            return 0;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - since));
+    }
+
+    /**
+     * Sets what to run each time records have been written, or failed to
+     * be, such as letting a {@link BackpressureGate} check again.
+     * @param listener Run on the thread that wrote the records, can be null.
+     */
+    public void setFlushListener(Runnable listener) {
+        this.flushListener = listener;
+    }
+
+    /**
+     * Reads back every record in the journal and opens it for appending.
+     * Records with a sequence after the one given are passed to the handler
+     * in the order they were written. A last line left unfinished by a crash
+     * is cut off the journal, as the sale it was for was never confirmed.
+     * Any other line that can not be read is skipped with a warning.
+     * @param snapshotSequence The sequence the data file was written at.
+     * @param handler Called with each record that is not yet in the data file.
+     * @return The number of records passed to the handler.
+     * @throws IOException Thrown when the journal could not be read or opened.
+     */
+    public synchronized int recover(long snapshotSequence, Consumer<Record> handler) throws IOException {
+        int replayed = 0;
+        long lastSequence = snapshotSequence;
+        records = 0;
+        byte[] data;
+        try {
+            data = Files.readAllBytes(path);
+        }
+        catch (NoSuchFileException e) {
+            logger.fine("No journal found at '" + path + "', starting a new one");
+            data = new byte[0];
+        }
+
+        // Only lines ending in a new line were written in full
+        int start = 0;
+        for (int end = 0; end < data.length; end++) {
+            if (data[end] != '\n') {
+                continue;
+            }
+            Record record = parse(new String(data, start, end - start, StandardCharsets.UTF_8));
+            start = end + 1;
+            if (record == null) {
+                logger.warning("Skipping unreadable line in journal '" + path + "'");
+                continue;
+            }
+            records++;
+            lastSequence = Math.max(lastSequence, record.getSequence());
+            if (record.getSequence() > snapshotSequence) {
+                handler.accept(record);
+                replayed++;
+            }
+        }
+        sequence = lastSequence;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (start < data.length) {
+            logger.warning("Removing unfinished record from the end of journal '" + path + "'");
+            synchronized (channelLock) {
+                channel.truncate(start);
+                channel.force(true);
+            }
+        }
+        return replayed;
+    }
+
+    /**
+     * Moves the sequence on to at least the one given, so that records
+     * written next follow those already held somewhere other than the
+     * journal, such as in an {@link InventorySnapshot}.
+     * @param held The last sequence held elsewhere.
+     */
+    public synchronized void advanceSequence(long held) {
+        sequence = Math.max(sequence, held);
+    }
+
+    /**
+     * Turns on group commit and starts the background flusher. A batch is
+     * written once its first record has waited for the window given, or as
+     * soon as it holds the number of records given.
+     * @param windowMillis Longest time in milliseconds a record waits for
+     * others to join its batch.
+     * @param maxRecords Number of records that causes a batch to be written
+     * straight away.
+     */
+    public synchronized void startGroupCommit(long windowMillis, int maxRecords) {
+        if (groupCommit) {
+            return;
+        }
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, windowMillis));
+        this.maxRecords = Math.max(1, maxRecords);
+        groupCommit = true;
+        flusher = new Thread(this::flushBatches, "Flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        logger.fine("Group commit started with a window of " + windowMillis + "ms or " + this.maxRecords + " records");
+    }
+
+    /**
+     * Turns off group commit, waiting for the flusher to write any records
+     * it still holds.
+     */
+    public void stopGroupCommit() {
+        Thread stopping;
+        synchronized (this) {
+            if (!groupCommit) {
+                return;
+            }
+            groupCommit = false;
+            stopping = flusher;
+            flusher = null;
+            notifyAll();
+        }
+        try {
+            stopping.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (batchesWritten > 0) {
+                logger.fine("Group commit wrote " + batchedRecords + " records in " + batchesWritten + " batches");
+            }
+        }
+    }
+
+    /**
+     * Writes a deduction to the end of the journal. With group commit on,
+     * the record joins the next batch and this waits until the batch has
+     * been forced to disk.
+     * @param eventID ID of the event the tickets belong to.
+     * @param delta Change in tickets left, negative for a sale.
+     * @param correlationID Correlation ID of the request, can be null.
+     * @return The sequence number of the record written.
+     * @throws DataDidNotSaveException Thrown if the record could not be written.
+     */
+    public long append(int eventID, int delta, String correlationID) throws DataDidNotSaveException {
+        return append(eventID, delta, Collections.singletonList(correlationID));
+    }
+
+    /**
+     * Writes one deduction for several requests to the end of the journal.
+     * @param eventID ID of the event the tickets belong to.
+     * @param delta Change in tickets left, negative for a sale.
+     * @param correlationIDs Correlation IDs of the requests, nulls are
+     * left out.
+     * @return The sequence number of the record written.
+     * @throws DataDidNotSaveException Thrown if the record could not be written.
+     * @see #append(int, int, String)
+     */
+    public long append(int eventID, int delta, List<String> correlationIDs) throws DataDidNotSaveException {
+        long next;
+        CompletableFuture<Void> batch;
+        synchronized (this) {
+            if (channel == null) {
+                throw new DataDidNotSaveException("Journal '" + path + "' has not been opened");
+            }
+            next = sequence + 1;
+            String line = format(next, eventID, delta, correlationIDs);
+            if (!groupCommit) {
+                writingSince = System.nanoTime();
+                try {
+                    write(channel, line, false);
+                }
+                finally {
+                    writingSince = 0;
+                    flushed();
+                }
+                sequence = next;
+                records++;
+                if (snapshot != null) {
+                    snapshot.apply(next, eventID, delta);
+                }
+                return next;
+            }
+            if (pendingBatch == null) {
+                pendingBatch = new CompletableFuture<>();
+                pendingSince = System.nanoTime();
+                waitingSince = pendingSince;
+                notifyAll();
+            }
+            pending.append(line);
+            pendingRecords++;
+            if (snapshot != null) {
+                pendingForSnapshot.add(new Record(next, 0, eventID, delta, Collections.<String>emptyList()));
+            }
+            sequence = next;
+            records++;
+            batch = pendingBatch;
+            if (pendingRecords >= maxRecords) {
+                notifyAll();
+            }
+        }
+        try {
+            batch.get();
+        }
+        catch (ExecutionException e) {
+            String errorMessage = "Could not write to journal '" + path + "'";
+            logger.warning(errorMessage);
+            throw new DataDidNotSaveException(errorMessage, e.getCause());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DataDidNotSaveException("Interrupted waiting for journal '" + path + "' to be written", e);
+        }
+        return next;
+    }
+
+    /**
+     * Run by the flusher. Waits for records to be appended, lets the batch
+     * fill for the window set, then writes and forces the batch and lets
+     * every append in it carry on.
+     */
+    private void flushBatches() {
+        while (true) {
+            String data;
+            int count;
+            CompletableFuture<Void> batch;
+            FileChannel out;
+            ArrayList<Record> written;
+            InventorySnapshot applyTo;
+            synchronized (this) {
+                try {
+                    while (pendingBatch == null && groupCommit) {
+                        wait();
+                    }
+                    long deadline = pendingSince + windowNanos;
+                    while (pendingBatch != null && groupCommit && pendingRecords < maxRecords) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    }
+                }
+                catch (InterruptedException e) {
+                    logger.warning("Flusher interrupted, writing records held");
+                }
+                if (pendingBatch == null) {
+                    return;
+                }
+                data = pending.toString();
+                count = pendingRecords;
+                batch = pendingBatch;
+                out = channel;
+                written = pendingForSnapshot;
+                applyTo = snapshot;
+                pendingForSnapshot = new ArrayList<>();
+                pending.setLength(0);
+                pendingRecords = 0;
+                pendingBatch = null;
+                writingSince = pendingSince;
+                waitingSince = 0;
+            }
+            try {
+                if (out == null) {
+                    throw new IOException("Journal '" + path + "' has been closed");
+                }
+                write(out, data, true);
+                // Only this thread writes batches, so they are applied in order
+                if (applyTo != null) {
+                    for (Record record : written) {
+                        applyTo.apply(record.getSequence(), record.getEventID(), record.getDelta());
+                    }
+                }
+                synchronized (this) {
+                    batchesWritten++;
+                    batchedRecords += count;
+                }
+                writingSince = 0;
+                batch.complete(null);
+            }
+            catch (DataDidNotSaveException | IOException e) {
+                writingSince = 0;
+                batch.completeExceptionally(e);
+            }
+            flushed();
+        }
+    }
+
+    /**
+     * Lets the flush listener know records have been written.
+     */
+    private void flushed() {
+        Runnable listener = flushListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Writes text to the end of the journal in one write.
+     * @param out The channel to write to.
+     * @param data The text to write.
+     * @param force Whether to force the data to disk after writing it.
+     * @throws DataDidNotSaveException Thrown if the data could not be written.
+     */
+    private void write(FileChannel out, String data, boolean force) throws DataDidNotSaveException {
+        ByteBuffer buffer = ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8));
+        synchronized (channelLock) {
+            try {
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                if (force) {
+                    out.force(false);
+                }
+            }
+            catch (IOException e) {
+                String errorMessage = "Could not write to journal '" + path + "'";
+                logger.warning(errorMessage);
+                throw new DataDidNotSaveException(errorMessage, e);
+            }
+        }
+    }
+
+    /**
+     * Empties the journal. Only to be called once the data file holds every
+     * record in the journal.
+     * @throws IOException Thrown if the journal could not be emptied.
+     */
+    public synchronized void truncate() throws IOException {
+        if (channel != null) {
+            synchronized (channelLock) {
+                channel.truncate(0);
+            }
+        }
+        records = 0;
+    }
+
+    /**
+     * Closes the journal file, writing any records still held by the
+     * flusher first.
+     */
+    public void close() {
+        stopGroupCommit();
+        closeChannel();
+    }
+
+    private synchronized void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                logger.warning("Could not close journal '" + path + "'");
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Formats a record as a line of the journal.
+     */
+    private String format(long sequence, int eventID, int delta, List<String> correlationIDs) {
+        StringBuilder ids = new StringBuilder();
+        for (String correlationID : correlationIDs) {
+            if (correlationID == null || correlationID.isEmpty()) {
+                continue;
+            }
+            if (ids.length() > 0) {
+                ids.append(',');
+            }
+            escape(correlationID, ids);
+        }
+        if (ids.length() == 0) {
+            ids.append(NO_CORRELATION_ID);
+        }
+        return sequence + " " + System.currentTimeMillis() + " " + eventID + " " + delta + " " + ids + "\n";
+    }
+
+    /**
+     * Writes a correlation ID so that it holds no separator.
+     */
+    private static void escape(String correlationID, StringBuilder out) {
+        if (NO_CORRELATION_ID.equals(correlationID)) {
+            out.append("%2D");
+            return;
+        }
+        for (int i = 0; i < correlationID.length(); i++) {
+            char c = correlationID.charAt(i);
+            if (c == '%' || c == ',' || c <= ' ' || c == 0x7f) {
+                out.append('%').append(HEX_DIGITS.charAt(c >> 4)).append(HEX_DIGITS.charAt(c & 0xf));
+            }
+            else {
+                out.append(c);
+            }
+        }
+    }
+
+    /**
+     * Reads back a correlation ID written by {@link #escape(String, StringBuilder)}.
+     */
+    private static String unescape(String text) {
+        if (text.indexOf('%') < 0) {
+            return text;
+        }
+        StringBuilder out = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '%' && i + 2 < text.length()) {
+                out.append((char) Integer.parseInt(text.substring(i + 1, i + 3), 16));
+                i += 2;
+            }
+            else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Reads a record from a line of the journal.
+     * @return The record or null if the line is not a complete record.
+     */
+    private Record parse(String line) {
+        String[] fields = line.split(" ");
+        if (fields.length != 5) {
+            return null;
+        }
+        try {
+            List<String> ids = new ArrayList<>();
+            if (!NO_CORRELATION_ID.equals(fields[4])) {
+                for (String id : fields[4].split(",")) {
+                    ids.add(unescape(id));
+                }
+            }
+            return new Record(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                Integer.parseInt(fields[2]), Integer.parseInt(fields[3]), ids);
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -99,11 +99,25 @@ public class EnvSetter {
      * Creates a MQ session with the details provided for this class. The
      * session created will be returned meaning that classes that will be
      * using queues and topics, for message transfer, can use this class to
-     * create their connections.
+     * create their connections. Synchronized as several {@link Cashier}
+     * workers may create their connections at the same time.
      * @return A JMSContext that can be used in sending and receiving messages from
      * queues or topics.
      */
     public JMSContext connect() {
+        return connect(JMSContext.AUTO_ACKNOWLEDGE);
+    }
+
+    /**
+     * Creates a MQ session with the details provided for this class, using
+     * the session mode given.
+     * @param sessionMode The session mode of the context, such as
+     * <tt>JMSContext.SESSION_TRANSACTED</tt> for a context whose receives
+     * and sends are committed together.
+     * @return A JMSContext that can be used in sending and receiving messages from
+     * queues or topics.
+     */
+    public synchronized JMSContext connect(int sessionMode) {
         if (filename != null) {
             setMQEnv(filename);
             setMQVariables();
@@ -117,7 +131,7 @@ public class EnvSetter {
         if (cf != null) {
             try {
                 logger.finer("Creating connection session");
-                context = cf.createContext(JMSContext.AUTO_ACKNOWLEDGE);
+                context = cf.createContext(sessionMode);
                 context.start();
                 openContexts.add(context);
                 logger.finer("JMS session connection initialised successfully");
@@ -136,7 +150,7 @@ public class EnvSetter {
      * Closes all the open connections that were created by this instance of
      * {@link EnvSetter}.
      */
-    public void closeConnections() {
+    public synchronized void closeConnections() {
         logger.finer("Attempting to close all open connections for EnvSetter");
         for (JMSContext context : openContexts) {
             try {
@@ -1,15 +1,26 @@
 package com.ibm.mq.badge;
 
-import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
 import java.time.LocalDate;
 import java.time.LocalTime;
 import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.NoSuchElementException;
-import java.util.Scanner;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.ibm.mq.events.Event;
@@ -58,6 +69,68 @@ public class EventManager {
      */
     private AtomicInteger uniqueID = new AtomicInteger(0);
 
+    /**
+     * Tickets left for each event, indexed by event ID. Deductions are
+     * made with compare-and-set on the slot of the event requested, so
+     * requests for different events never contend and requests for the
+     * same event can not oversell. Rebuilt whenever events are added.
+     */
+    private volatile AtomicIntegerArray ticketsLeft = new AtomicIntegerArray(0);
+
+    /**
+     * One bit per event ID, set while the event has no tickets that can be
+     * sold. Lets requests for sold out events be turned away without
+     * touching the ticket counters or storage. A set bit turns a request
+     * away outright, so every change to a counter is followed by
+     * {@link #updateSoldOut(AtomicIntegerArray, int)}, which does not
+     * return until the bit agrees with the counter. The bit can only be out
+     * of date while the thread that changed the counter is still updating
+     * it.
+     */
+    private volatile AtomicLongArray soldOut = new AtomicLongArray(0);
+
+    /**
+     * Told about the requests found in the journal on start up when set.
+     */
+    private ProcessedRequests processedRequests = null;
+
+    /**
+     * One {@link DeductionCombiner} per event, indexed by event ID. Rebuilt
+     * with the ticket counters.
+     */
+    private volatile DeductionCombiner[] combiners = new DeductionCombiner[0];
+
+    /**
+     * Whether journalled deductions for the same event are combined into
+     * one record.
+     */
+    private boolean combineDeductions = Settings.getBoolean(Settings.COMBINE_DEDUCTIONS, false);
+
+    /**
+     * Key under which the journal sequence is saved in the data file.
+     */
+    private static final String JOURNAL_SEQUENCE = "Journal Sequence";
+
+    /**
+     * Number of journal records after which the journal is folded into the
+     * data file.
+     */
+    private int compactAfter = Settings.getInt(Settings.JOURNAL_COMPACT_AFTER, 1000);
+
+    /**
+     * Number of threads the events in the data file are created on at
+     * start up.
+     */
+    private int loadThreads = Math.max(1, Settings.getInt(Settings.CATALOGUE_LOAD_THREADS,
+        Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Deductions hold the read lock while they take tickets and write to
+     * the journal, and folding the journal into the data file holds the
+     * write lock. This stops a deduction from being both in the data file
+     * and still to come in the journal.
+     */
+    private final ReadWriteLock journalLock = new ReentrantReadWriteLock();
 
     /**
      * Creates an {@link EventManager} with a specified
@@ -83,6 +156,62 @@ public class EventManager {
 
     public void setBookableEvents(HashMap<Integer, Event> bookableEvents) {
         this.bookableEvents = bookableEvents;
+        indexTickets();
+    }
+
+    /**
+     * Gets the number of tickets left for an event.
+     * @param eventID ID of the event.
+     * @return The number of tickets left, or null if there is no event
+     * with that ID.
+     */
+    public Integer getTicketsLeft(Integer eventID) {
+        AtomicIntegerArray tickets = ticketsLeft;
+        if (eventID == null || eventID < 0 || eventID >= tickets.length()) {
+            return null;
+        }
+        return tickets.get(eventID);
+    }
+
+    public int getCompactAfter() {
+        return compactAfter;
+    }
+
+    public void setCompactAfter(int compactAfter) {
+        this.compactAfter = compactAfter;
+    }
+
+    /**
+     * Checks whether an event has sold out, without touching the ticket
+     * counters. Unknown events are not reported as sold out.
+     * @param eventID ID of the event.
+     * @return True if no more tickets can be sold for the event.
+     */
+    public boolean isSoldOut(int eventID) {
+        AtomicLongArray bits = soldOut;
+        return eventID >= 0 && (eventID >> 6) < bits.length()
+            && (bits.get(eventID >> 6) & (1L << eventID)) != 0;
+    }
+
+    public ProcessedRequests getProcessedRequests() {
+        return processedRequests;
+    }
+
+    /**
+     * Sets the cache that is given the correlation IDs of the deductions
+     * replayed from the journal. Must be set before the events are set up.
+     * @param processedRequests The cache of processed requests.
+     */
+    public void setProcessedRequests(ProcessedRequests processedRequests) {
+        this.processedRequests = processedRequests;
+    }
+
+    public boolean isCombineDeductions() {
+        return combineDeductions;
+    }
+
+    public void setCombineDeductions(boolean combineDeductions) {
+        this.combineDeductions = combineDeductions;
     }
 
     public StorageManager getStorageManager() {
@@ -111,28 +240,50 @@ public class EventManager {
     }
 
     /**
-     * Sets up the events with a specified {@link StorageManager}.
+     * Sets up the events with a specified {@link StorageManager}. If the
+     * {@link StorageManager} has a journal, any deductions in the journal
+     * that are not yet in the data file are applied to the events.
+     *
+     * <p>If the {@link StorageManager} also has an {@link InventorySnapshot}
+     * that matches the data file, the events are taken from the snapshot
+     * instead of the data file. Otherwise a new snapshot is written once the
+     * events have been read from the data file.
      * @param storageManager The {@link StorageManager} which it
      * will read the data from
      * @param key The under which the events array is stored under
      */
     public void setupAndSetEvents(StorageManager storageManager, String key) {
         if (!setup) {
-            JSONArray eventsArray = null;
+            JSONObject data = null;
+            InventorySnapshot snapshot = null;
+            HashMap<Integer, Event> snapshotEvents = null;
             if (storageManager != null && storageManager.getFilename() != null) {
-                eventsArray = getJsonArray(storageManager.getFilename(), key);
+                if (storageManager.getJournal() != null) {
+                    snapshot = storageManager.getSnapshot();
+                }
+                if (snapshot != null) {
+                    snapshotEvents = snapshot.load(Paths.get(storageManager.getFilename()));
+                }
+                if (snapshotEvents == null) {
+                    data = loadEvents(storageManager.getFilename(), key);
+                }
             }
             else {
                 logger.warning("Could not get data from null storage manager or " +
                     "a null filename for specified storage manager");
             }
 
-            // Iterating through each event
-            if (eventsArray != null) {
-                Iterator<?> iterator = eventsArray.iterator();
-                while (iterator.hasNext()) {
-                    JSONObject eventObject = (JSONObject) iterator.next();
-                    createEventFromJson(eventObject);
+            if (snapshotEvents != null) {
+                bookableEvents.putAll(snapshotEvents);
+                uniqueID.set(Math.max(uniqueID.get(), snapshot.getCount()));
+                indexTickets();
+                replayJournal(storageManager, snapshot);
+            }
+            else if (data != null) {
+                indexTickets();
+                replayJournal(storageManager, data.optLong(JOURNAL_SEQUENCE, 0));
+                if (snapshot != null) {
+                    writeSnapshot(storageManager, snapshot);
                 }
             }
             else {
@@ -155,7 +306,20 @@ public class EventManager {
      * event could not be altered further
      */
     public void subtractTickets(Integer eventID, Integer numberRequested) throws CouldNotDeductTicketsException {
-        subtractTickets(eventID, numberRequested, storageManager);
+        subtractTickets(eventID, numberRequested, null, storageManager);
+    }
+
+    /**
+     * Subtracts the tickets requested from a client, recording the
+     * correlation ID of the request in the journal if there is one.
+     * @param eventID ID of the event that is being requested.
+     * @param numberRequested Number of tickets that is requested for said event.
+     * @param correlationID Correlation ID of the request, can be null.
+     * @throws CouldNotDeductTicketsException Thrown when tickets quantity for an
+     * event could not be altered further
+     */
+    public void subtractTickets(Integer eventID, Integer numberRequested, String correlationID) throws CouldNotDeductTicketsException {
+        subtractTickets(eventID, numberRequested, correlationID, storageManager);
     }
 
     /**
@@ -170,45 +334,493 @@ public class EventManager {
      * event could not be altered further
      */
     public void subtractTickets(Integer eventID, Integer numberRequested, StorageManager storageManager) throws CouldNotDeductTicketsException {
-        if (numberRequested < 0) {
+        subtractTickets(eventID, numberRequested, null, storageManager);
+    }
+
+    /**
+     * Subtracts the tickets requested from a client and saves the data internally
+     * (and to a file if there is a correctly setup {@link StorageManager}
+     * specified). The tickets are reserved with a compare-and-set on the
+     * counter for the event so that several {@link Cashier} workers can
+     * deduct tickets at the same time. If the data could not be saved then
+     * the reservation is handed back.
+     *
+     * <p>When the {@link StorageManager} has a journal, the deduction is
+     * appended to the journal rather than saving every event, and the
+     * journal is folded into the data file once it holds enough records.
+     * With deductions combined, requests for the same event arriving
+     * together share one journal record, see {@link DeductionCombiner}.
+     * @param eventID ID of the event that is being requested.
+     * @param numberRequested Number of tickets that is requested for said event.
+     * @param correlationID Correlation ID of the request, can be null.
+     * @param storageManager The {@link StorageManager} from which it will save
+     * data to.
+     * @throws CouldNotDeductTicketsException Thrown when tickets quantity for an
+     * event could not be altered further
+     */
+    public void subtractTickets(Integer eventID, Integer numberRequested, String correlationID, StorageManager storageManager) throws CouldNotDeductTicketsException {
+        if (numberRequested == null || numberRequested < 0) {
             throw new CouldNotDeductTicketsException("Number requested was a negative number");
         }
-        Event bookableEvent = bookableEvents.get(eventID);
-        Integer ticketsLeft = bookableEvent.getCapacity() - numberRequested;
+        if (numberRequested > 0 && eventID != null && isSoldOut(eventID)) {
+            throw new CouldNotDeductTicketsException("Event '" + eventID + "' has sold out");
+        }
+        AtomicIntegerArray tickets = ticketsLeft;
+        Event bookableEvent = (eventID != null) ? bookableEvents.get(eventID) : null;
+        if (bookableEvent == null || eventID < 0 || eventID >= tickets.length()) {
+            throw new CouldNotDeductTicketsException("Event '" + eventID + "' does not exist");
+        }
         logger.fine("Processing request for event: " + bookableEvent.getTitle());
         logger.fine("Number requested was: " + String.valueOf(numberRequested));
-        logger.fine("There would be " + String.valueOf(ticketsLeft) + " tickets left");
-        if (ticketsLeft > 0) {
-            if (storageManager != null) {
+        DeductionJournal journal = (storageManager != null) ? storageManager.getJournal() : null;
+        DeductionCombiner[] eventCombiners = combiners;
+        if (journal != null && combineDeductions && eventID < eventCombiners.length) {
+            DeductionCombiner.Request request = new DeductionCombiner.Request(numberRequested, correlationID);
+            DeductionCombiner combiner = eventCombiners[eventID];
+            combiner.submit(request, () -> combine(tickets, eventID, combiner, journal));
+            if (!request.isGranted()) {
+                throw new CouldNotDeductTicketsException(request.getReason(), request.getFailure());
+            }
+            if (journal.size() >= compactAfter) {
+                compactAfterSale(storageManager);
+            }
+        }
+        else if (journal != null) {
+            journalLock.readLock().lock();
+            try {
+                int left = reserveTickets(tickets, eventID, numberRequested);
+                logger.fine("There will be " + String.valueOf(left) + " tickets left");
+                journal.append(eventID, -numberRequested, correlationID);
+            }
+            catch (DataDidNotSaveException e) {
+                handBack(tickets, eventID, numberRequested);
+                throw new CouldNotDeductTicketsException(e.getMessage(), e);
+            }
+            finally {
+                journalLock.readLock().unlock();
+            }
+            if (journal.size() >= compactAfter) {
+                compactAfterSale(storageManager);
+            }
+        }
+        else if (storageManager != null) {
+            int left = reserveTickets(tickets, eventID, numberRequested);
+            logger.fine("There will be " + String.valueOf(left) + " tickets left");
+            try {
+                /*
+                * Building the data inside the storage manager's lock means the
+                * last save always holds every reservation made before it.
+                */
+                synchronized (storageManager) {
+                    storageManager.saveNewData(eventsToJSON());
+                }
+            }
+            catch (JSONException | DataDidNotSaveException e) {
+                handBack(tickets, eventID, numberRequested);
+                throw new CouldNotDeductTicketsException(e.getMessage(), e);
+            }
+        }
+        else {
+            reserveTickets(tickets, eventID, numberRequested);
+            logger.info("Storage manager has not been set so data will NOT be saved to a file");
+        }
+        bookableEvent.setCapacity(tickets.get(eventID));
+        logger.info("There are now " + String.valueOf(bookableEvent.getCapacity()) + " for event: " + bookableEvent.getTitle());
+    }
+
+    /**
+     * Handles the requests waiting in a {@link DeductionCombiner}. Requests
+     * are granted in the order they arrived while there are tickets left,
+     * then one journal record is written for every ticket granted. If the
+     * record could not be written the tickets are handed back and every
+     * request in the pass is rejected. Must be called holding the lock of
+     * the combiner.
+     *
+     * <p>The read lock of the journal is held from the first ticket taken
+     * until the record is written or the tickets are handed back, as in
+     * the single request path, so a compaction can never save tickets to
+     * the data file that are not yet in the journal.
+     * @param tickets The counters to take the tickets from.
+     * @param eventID ID of the event the requests are for.
+     * @param combiner The combiner of the event.
+     * @param journal The journal to write the record to.
+     */
+    private void combine(AtomicIntegerArray tickets, int eventID, DeductionCombiner combiner, DeductionJournal journal) {
+        ArrayList<DeductionCombiner.Request> granted = new ArrayList<>();
+        ArrayList<String> correlationIDs = new ArrayList<>();
+        int total = 0;
+        DeductionCombiner.Request request;
+        journalLock.readLock().lock();
+        try {
+            while (granted.size() < DeductionCombiner.MAX_PER_PASS && (request = combiner.poll()) != null) {
                 try {
-                    // Saving the data to a new file
-                    storageManager.saveNewData(eventsToJSON(eventID, ticketsLeft));
+                    reserveTickets(tickets, eventID, request.getNumberRequested());
+                    granted.add(request);
+                    total += request.getNumberRequested();
+                    correlationIDs.add(request.getCorrelationID());
                 }
-                catch (JSONException | DataDidNotSaveException e) {
-                    throw new CouldNotDeductTicketsException(e.getMessage());
+                catch (CouldNotDeductTicketsException e) {
+                    request.reject(e.getMessage());
                 }
             }
-            else {
-                logger.info("Storage manager has not been set so data will NOT be saved to a file");
+            if (granted.isEmpty()) {
+                return;
+            }
+            journal.append(eventID, -total, correlationIDs);
+            for (DeductionCombiner.Request grantedRequest : granted) {
+                grantedRequest.grant();
+            }
+            logger.fine("Combined " + granted.size() + " requests for " + total + " tickets, there will be " + tickets.get(eventID) + " tickets left");
+        }
+        catch (DataDidNotSaveException e) {
+            handBack(tickets, eventID, total);
+            for (DeductionCombiner.Request grantedRequest : granted) {
+                grantedRequest.reject(e.getMessage(), e);
+            }
+        }
+        finally {
+            journalLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Hands back tickets that were deducted for a request that was then
+     * rolled back. The return is recorded in the journal as a deduction of
+     * a negative number of tickets, or the data file is saved if there is
+     * no journal.
+     * @param eventID ID of the event the tickets were deducted from.
+     * @param numberReturned Number of tickets to hand back.
+     * @param correlationID Correlation ID of the request, can be null.
+     */
+    public void returnTickets(Integer eventID, Integer numberReturned, String correlationID) {
+        AtomicIntegerArray tickets = ticketsLeft;
+        Event bookableEvent = (eventID != null) ? bookableEvents.get(eventID) : null;
+        if (bookableEvent == null || eventID < 0 || eventID >= tickets.length()
+            || numberReturned == null || numberReturned <= 0) {
+            logger.warning("Could not return " + numberReturned + " tickets to event '" + eventID + "'");
+            return;
+        }
+        DeductionJournal journal = (storageManager != null) ? storageManager.getJournal() : null;
+        if (journal != null) {
+            journalLock.readLock().lock();
+            try {
+                handBack(tickets, eventID, numberReturned);
+                journal.append(eventID, numberReturned, correlationID);
+            }
+            catch (DataDidNotSaveException e) {
+                logger.warning("Returned tickets for event '" + eventID + "' could not be journalled: " + e.getMessage());
+            }
+            finally {
+                journalLock.readLock().unlock();
+            }
+        }
+        else if (storageManager != null) {
+            handBack(tickets, eventID, numberReturned);
+            try {
+                synchronized (storageManager) {
+                    storageManager.saveNewData(eventsToJSON());
+                }
+            }
+            catch (JSONException | DataDidNotSaveException e) {
+                logger.warning("Returned tickets for event '" + eventID + "' could not be saved: " + e.getMessage());
             }
-            bookableEvent.setCapacity(ticketsLeft);
-            logger.info("There are now " + String.valueOf(bookableEvent.getCapacity()) + " for event: " + bookableEvent.getTitle());
         }
         else {
-            throw new CouldNotDeductTicketsException("There is not enough tickets left");
+            handBack(tickets, eventID, numberReturned);
+        }
+        bookableEvent.setCapacity(tickets.get(eventID));
+        logger.info("Returned " + numberReturned + " tickets, there are now " + bookableEvent.getCapacity() + " for event: " + bookableEvent.getTitle());
+    }
+
+    /**
+     * Folds the journal of the current {@link StorageManager} into its data
+     * file. Does nothing if there is no journal.
+     * @throws CouldNotDeductTicketsException Thrown if the data file could not
+     * be saved, in which case the journal is kept.
+     */
+    public void compact() throws CouldNotDeductTicketsException {
+        compact(storageManager);
+    }
+
+    /**
+     * Folds the journal into the data file once a sale has taken it past
+     * the number of records set. The sale is already in the journal, so a
+     * data file that could not be saved does not fail it. The journal is
+     * kept and the fold is tried again after the next sale.
+     * @param storageManager The {@link StorageManager} to compact.
+     */
+    private void compactAfterSale(StorageManager storageManager) {
+        try {
+            compact(storageManager);
+        }
+        catch (CouldNotDeductTicketsException e) {
+            logger.warning(e.getMessage() + ", will try again after the next sale");
+        }
+    }
+
+    /**
+     * Folds the journal of a {@link StorageManager} into its data file. The
+     * data file is saved with the sequence of the last journal record, and
+     * then the journal is emptied. Deductions wait while this happens.
+     * @param storageManager The {@link StorageManager} to compact.
+     * @throws CouldNotDeductTicketsException Thrown if the data file could not
+     * be saved, in which case the journal is kept.
+     */
+    private void compact(StorageManager storageManager) throws CouldNotDeductTicketsException {
+        DeductionJournal journal = (storageManager != null) ? storageManager.getJournal() : null;
+        if (journal == null) {
+            return;
+        }
+        journalLock.writeLock().lock();
+        try {
+            if (journal.size() == 0) {
+                return;
+            }
+            int records = journal.size();
+            JSONObject data = eventsToJSON();
+            data.put(JOURNAL_SEQUENCE, journal.getSequence());
+            storageManager.saveNewData(data);
+            journal.truncate();
+            logger.fine("Folded " + records + " journal records into '" + storageManager.getFilename() + "'");
+        }
+        catch (JSONException | DataDidNotSaveException | IOException e) {
+            throw new CouldNotDeductTicketsException("Could not fold journal into data file: " + e.getMessage(), e);
+        }
+        finally {
+            journalLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Applies the deductions in the journal that are not yet held in the
+     * data file, then folds the journal into the data file.
+     * @param storageManager The {@link StorageManager} holding the journal.
+     * @param snapshotSequence The sequence the data file was saved at.
+     */
+    private void replayJournal(StorageManager storageManager, long snapshotSequence) {
+        DeductionJournal journal = (storageManager != null) ? storageManager.getJournal() : null;
+        if (journal == null) {
+            return;
+        }
+        AtomicIntegerArray tickets = ticketsLeft;
+        try {
+            int replayed = journal.recover(snapshotSequence, record -> {
+                int id = record.getEventID();
+                if (id >= 0 && id < tickets.length()) {
+                    tickets.addAndGet(id, record.getDelta());
+                    rememberRequests(record);
+                }
+                else {
+                    logger.warning("Journal record " + record.getSequence() + " is for unknown event " + id);
+                }
+            });
+            for (Integer id : bookableEvents.keySet()) {
+                bookableEvents.get(id).setCapacity(tickets.get(id));
+                updateSoldOut(tickets, id);
+            }
+            logger.info("Replayed " + replayed + " deductions from journal '" + journal.getFilename() + "'");
+            compact(storageManager);
+        }
+        catch (IOException e) {
+            logger.warning("Could not open journal '" + journal.getFilename() + "', deductions will save the whole data file");
+            storageManager.setJournal(null);
+        }
+        catch (CouldNotDeductTicketsException e) {
+            logger.warning(e.getMessage());
+        }
+    }
+
+    /**
+     * Applies the deductions in the journal that are not yet held in an
+     * {@link InventorySnapshot}, both to the events and to the snapshot,
+     * then folds the journal into the data file. The snapshot is then kept
+     * up to date by the journal.
+     * @param storageManager The {@link StorageManager} holding the journal.
+     * @param snapshot The snapshot the events were loaded from.
+     */
+    private void replayJournal(StorageManager storageManager, InventorySnapshot snapshot) {
+        DeductionJournal journal = storageManager.getJournal();
+        AtomicIntegerArray tickets = ticketsLeft;
+        try {
+            // Every record is read so the requests in it are remembered,
+            // but only those the snapshot does not hold are applied
+            int[] replayed = new int[1];
+            journal.recover(0, record -> {
+                int id = record.getEventID();
+                rememberRequests(record);
+                if (id >= 0 && id < tickets.length() && record.getSequence() > snapshot.getSequence(id)) {
+                    tickets.addAndGet(id, record.getDelta());
+                    snapshot.apply(record.getSequence(), id, record.getDelta());
+                    replayed[0]++;
+                }
+            });
+            journal.advanceSequence(snapshot.getSequence());
+            for (Integer id : bookableEvents.keySet()) {
+                bookableEvents.get(id).setCapacity(tickets.get(id));
+                updateSoldOut(tickets, id);
+            }
+            logger.info("Replayed " + replayed[0] + " deductions from journal '" + journal.getFilename() + "' into snapshot");
+            journal.setSnapshot(snapshot);
+            compact(storageManager);
+        }
+        catch (IOException e) {
+            logger.warning("Could not open journal '" + journal.getFilename() + "', deductions will save the whole data file");
+            storageManager.setJournal(null);
+            snapshot.close();
+            storageManager.setSnapshot(null);
+        }
+        catch (CouldNotDeductTicketsException e) {
+            logger.warning(e.getMessage());
+        }
+    }
+
+    /**
+     * Writes a new {@link InventorySnapshot} of the events once they have
+     * been read from the data file and the journal replayed, and has the
+     * journal keep it up to date. If the snapshot could not be written, or
+     * there is no journal, it is not used.
+     * @param storageManager The {@link StorageManager} the snapshot belongs
+     * to.
+     * @param snapshot The snapshot to write.
+     */
+    private void writeSnapshot(StorageManager storageManager, InventorySnapshot snapshot) {
+        DeductionJournal journal = storageManager.getJournal();
+        try {
+            if (journal == null) {
+                throw new IOException("there is no journal to keep it up to date");
+            }
+            snapshot.write(bookableEvents, ticketsLeft, journal.getSequence(), Paths.get(storageManager.getFilename()));
+            journal.setSnapshot(snapshot);
+        }
+        catch (IOException e) {
+            logger.warning("Could not write snapshot '" + snapshot.getFilename() + "', " + e.getMessage());
+            storageManager.setSnapshot(null);
+        }
+    }
+
+    /**
+     * Tells the {@link ProcessedRequests} cache about the requests in a
+     * journal record. A sale was accepted, while tickets handed back mean
+     * the request was rolled back and will be handled again.
+     * @param record The journal record replayed.
+     */
+    private void rememberRequests(DeductionJournal.Record record) {
+        if (processedRequests == null) {
+            return;
+        }
+        for (String correlationID : record.getCorrelationIDs()) {
+            if (record.getDelta() < 0) {
+                processedRequests.put(correlationID, "Accepted", record.getTimestamp());
+            }
+            else {
+                processedRequests.remove(correlationID);
+            }
+        }
+    }
+
+    /**
+     * Takes tickets from the counter of an event without locking. The
+     * counter is read, checked and swapped with compare-and-set, retrying
+     * if another thread changed it in between.
+     * @param tickets The counters to take the tickets from.
+     * @param eventID ID of the event that is being requested.
+     * @param numberRequested Number of tickets to take.
+     * @return The number of tickets left after taking them.
+     * @throws CouldNotDeductTicketsException Thrown when taking the tickets
+     * would not leave any tickets left.
+     */
+    private int reserveTickets(AtomicIntegerArray tickets, int eventID, int numberRequested) throws CouldNotDeductTicketsException {
+        while (true) {
+            int current = tickets.get(eventID);
+            int left = current - numberRequested;
+            if (left <= 0) {
+                throw new CouldNotDeductTicketsException("There is not enough tickets left");
+            }
+            if (tickets.compareAndSet(eventID, current, left)) {
+                updateSoldOut(tickets, eventID);
+                return left;
+            }
+        }
+    }
+
+    /**
+     * Gives tickets back to the counter of an event, such as when a sale
+     * could not be saved.
+     * @param tickets The counters to give the tickets back to.
+     * @param eventID ID of the event.
+     * @param number Number of tickets to give back.
+     */
+    private void handBack(AtomicIntegerArray tickets, int eventID, int number) {
+        tickets.addAndGet(eventID, number);
+        updateSoldOut(tickets, eventID);
+    }
+
+    /**
+     * Sets or clears the sold out bit of an event from its counter. An
+     * event is sold out once a single ticket can not be taken, as a sale
+     * must always leave at least one ticket. The counter is read again
+     * after the bit is written, and the bit written again if the counter
+     * changed in between, so a thread that read the counter earlier can
+     * not leave behind a bit that no longer agrees with it.
+     * @param tickets The counters the bit is worked out from.
+     * @param eventID ID of the event.
+     */
+    private void updateSoldOut(AtomicIntegerArray tickets, int eventID) {
+        AtomicLongArray bits = soldOut;
+        int word = eventID >> 6;
+        if (word >= bits.length()) {
+            return;
+        }
+        long bit = 1L << eventID;
+        while (true) {
+            boolean sold = tickets.get(eventID) <= 1;
+            long current = bits.get(word);
+            long updated = sold ? (current | bit) : (current & ~bit);
+            if (updated != current && !bits.compareAndSet(word, current, updated)) {
+                continue;
+            }
+            if ((tickets.get(eventID) <= 1) == sold) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the ticket counters from the capacity of every event held.
+     * Events should be added before any tickets are deducted, as counts
+     * taken while this runs may be lost.
+     */
+    private synchronized void indexTickets() {
+        int size = 0;
+        for (Integer id : bookableEvents.keySet()) {
+            size = Math.max(size, id + 1);
+        }
+        AtomicIntegerArray tickets = new AtomicIntegerArray(size);
+        for (Integer id : bookableEvents.keySet()) {
+            Integer capacity = bookableEvents.get(id).getCapacity();
+            tickets.set(id, (capacity != null) ? capacity : 0);
+        }
+        DeductionCombiner[] eventCombiners = new DeductionCombiner[size];
+        for (int i = 0; i < size; i++) {
+            eventCombiners[i] = new DeductionCombiner();
+        }
+        combiners = eventCombiners;
+        soldOut = new AtomicLongArray((size + 63) >> 6);
+        ticketsLeft = tickets;
+        for (int i = 0; i < size; i++) {
+            updateSoldOut(tickets, i);
         }
     }
 
     /**
      * Creates a JSON object with details from the events that are stored in the
-     * current {@link EventManager}.
-     * @param eventID ID of the event being requested
-     * @param ticketsLeft Number of tickets left after the request.
+     * current {@link EventManager}. Ticket quantities are taken from the
+     * ticket counters.
      * @return A JSON object that contains all the information for the events stored.
      * @throws JSONException Thrown when an error occurred when creating JSON objects
      * and JSON Arrays.
      */
-    private JSONObject eventsToJSON(Integer eventID, Integer ticketsLeft) throws JSONException {
+    private JSONObject eventsToJSON() throws JSONException {
         JSONObject jo = new JSONObject();
         JSONArray ja = new JSONArray();
         try {
@@ -221,15 +833,7 @@ public class EventManager {
                 parent.put("Location", bookableEvent.getLocation());
                 parent.put("Time", String.valueOf(bookableEvent.getTime()));
                 parent.put("Date", String.valueOf(bookableEvent.getDate()));
-
-                // If the event ID is equal to the one requested
-                if (eventID == id) {
-                    logger.finest("Event: " + bookableEvent.getTitle() + " is being modified");
-                    parent.put("Ticket Quantity", ticketsLeft);
-                }
-                else {
-                    parent.put("Ticket Quantity", bookableEvent.getCapacity());
-                }
+                parent.put("Ticket Quantity", getTicketsLeft(id));
                 ja.put(parent);
             }
         }
@@ -249,11 +853,26 @@ public class EventManager {
     /**
      * Creates an event from a JSON object that contains all the details needed.
      * Each event created from this is added to the total event list for this
-     * current {@link EventManager}
+     * current {@link EventManager}. The ticket counters are rebuilt once all
+     * events have been created.
      * @param eventObject The JSON object that contains the event details.
      */
     private void createEventFromJson(JSONObject eventObject) {
         Integer eventID = generateID();
+        Event bookableEvent = eventFromJson(eventID, eventObject);
+        if (bookableEvent != null) {
+            bookableEvents.put(eventID, bookableEvent);
+        }
+    }
+
+    /**
+     * Creates an event from a JSON object without adding it to the event
+     * list, so that events can be created on several threads at once.
+     * @param eventID ID to give the event.
+     * @param eventObject The JSON object that contains the event details.
+     * @return The event, or null if the details are not complete.
+     */
+    private Event eventFromJson(Integer eventID, JSONObject eventObject) {
         String name = getValueFromJson(eventObject, "Name");
         String location = getValueFromJson(eventObject, "Location");
         LocalTime time = getTimeFromString(getValueFromJson(eventObject, "Time"));
@@ -271,8 +890,11 @@ public class EventManager {
             // Creates a venue containing specific information
             Venue venue = createVenue(location, date, time);
             // Creates the event with all the properties bundled together
-            addEvents(eventID, createBookableEvent(eventID, name, venue, ticketQuantity));
-            logger.fine("Event Created: " + name + " ID=" + eventID);
+            Event bookableEvent = createBookableEvent(eventID, name, venue, ticketQuantity);
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("Event Created: " + name + " ID=" + eventID);
+            }
+            return bookableEvent;
         }
         else {
             String eventNotice = "Event not fully complete";
@@ -286,6 +908,7 @@ public class EventManager {
                 logger.fine(eventNotice);
             }
             logger.finer("Info needed for a bookable event: EventID, Name, Location, Date, Time, TicketQuantity[Standard[Price, Quantity]] ([] = JSON array)");
+            return null;
         }
     }
 
@@ -316,28 +939,70 @@ public class EventManager {
     }
 
     /**
-     * Gets a JSON array from a file specified.
-     * @param filename File to get the array from.
-     * @param arrayToGet The key of which the array is under.
-     * @return Returns a JSONArray or null if there was no array found.
+     * Creates the events held in a data file, reading the events array one
+     * event at a time with a {@link CatalogueReader} so the whole file is
+     * never held in memory. With more than one load thread, the events are
+     * handed to a {@link ParallelLoad} in chunks. If the file can not be
+     * read to the end, the events created from it are removed again and the
+     * failure is logged as severe, which exits with {@code System.exit(1)},
+     * as the data file is the only record of the tickets left.
+     * @param filename File to read the events from.
+     * @param arrayToGet The key of which the events array is under.
+     * @return The other values held in the file, or null if no events
+     * could be read.
      */
-    private JSONArray getJsonArray(String filename, String arrayToGet) {
-        JSONArray ja = null;
-        try {
-            JSONObject jo = new JSONObject(new Scanner(new File(filename)).useDelimiter("\\Z").next());
-            ja = (JSONArray) jo.getJSONArray(arrayToGet);
+    private JSONObject loadEvents(String filename, String arrayToGet) {
+        long start = System.nanoTime();
+        int firstID = uniqueID.get();
+        JSONObject data = null;
+        int elements = 0;
+        String problem = null;
+        Exception cause = null;
+        try (CatalogueReader reader = new CatalogueReader(filename, arrayToGet)) {
+            if (loadThreads > 1) {
+                try (ParallelLoad load = new ParallelLoad(firstID, loadThreads)) {
+                    data = reader.read(load);
+                    if (data != null) {
+                        load.merge();
+                    }
+                }
+            }
+            else {
+                data = reader.read(element -> createEventFromJson(new JSONObject(element)));
+            }
+            elements = reader.getElements();
+            if (data == null) {
+                problem = "There is not data in '" + filename + "'";
+            }
+            else if (!reader.foundArray()) {
+                problem = "Data in file '" + filename + "' does not hold a JSON Array under '" + arrayToGet + "'";
+                data = null;
+            }
         }
-        catch (NoSuchElementException e) {
-            logger.warning("There is not data in '" + filename + "'");
+        catch (NoSuchFileException e) {
+            problem = "File: " + filename + " was not found";
+            cause = e;
         }
-        catch(JSONException e) {
-            logger.warning("Data in file '" + filename + "' could not be parsed as a JSON Array");
-            logger.warning(e.toString());
+        catch (IOException e) {
+            problem = "Could not read file '" + filename + "'";
+            cause = e;
+            data = null;
         }
-        catch (FileNotFoundException e) {
-            logger.warning("File: " + filename + " was not found");
+        catch (JSONException | ClassCastException e) {
+            problem = "Data in file '" + filename + "' could not be parsed as a JSON Object";
+            cause = e;
+            data = null;
         }
-        return ja;
+        if (data == null) {
+            for (int id = firstID; id < uniqueID.get(); id++) {
+                bookableEvents.remove(id);
+            }
+            logger.log(Level.SEVERE, problem, cause);
+            return null;
+        }
+        logger.info("Loaded " + elements + " events from '" + filename + "' on " + loadThreads + " threads in " +
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+        return data;
     }
 
     /**
@@ -358,7 +1023,9 @@ public class EventManager {
         bookableEvent.setDate(String.valueOf(venue.getDate()));
         bookableEvent.setLocation(venue.getLocation());
         bookableEvent.setCapacity(ticketQuantity);
-        logger.finest("Bookable event created with eventID '" + eventID + "' with name of '" + eventName + "'");
+        if (logger.isLoggable(Level.FINEST)) {
+            logger.finest("Bookable event created with eventID '" + eventID + "' with name of '" + eventName + "'");
+        }
         return bookableEvent;
     }
 
@@ -372,8 +1039,10 @@ public class EventManager {
      */
     private Venue createVenue(String location, LocalDate date, LocalTime time) {
         Venue venue = new Venue(location, date, time);
-        logger.finest("Venue created at location '" + location + "' at time '" + time +
-            "' at date '" + date + "'");
+        if (logger.isLoggable(Level.FINEST)) {
+            logger.finest("Venue created at location '" + location + "' at time '" + time +
+                "' at date '" + date + "'");
+        }
         return venue;
     }
 
@@ -477,4 +1146,88 @@ public class EventManager {
             return true;
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Creates the events read from the data file on a fork-join pool. The
+     * elements of the events array are collected into chunks, and each
+     * chunk is turned into events on the pool while the file carries on
+     * being read. Each event is given the ID of its place in the file, so
+     * the IDs are the same as when the events are created one after
+     * another. Only a few chunks are read ahead of the pool, so the text
+     * of the file is never all held at once.
+     */
+    private class ParallelLoad implements Consumer<String>, AutoCloseable {
+        private static final int CHUNK_SIZE = 1024;
+
+        private final ForkJoinPool pool;
+        private final Semaphore chunksAhead;
+        private final ArrayList<ForkJoinTask<Event[]>> chunks = new ArrayList<>();
+        private final int firstID;
+        private ArrayList<String> chunk = new ArrayList<>(CHUNK_SIZE);
+        private int nextID;
+
+        ParallelLoad(int firstID, int threads) {
+            this.firstID = firstID;
+            this.nextID = firstID;
+            this.pool = new ForkJoinPool(threads);
+            this.chunksAhead = new Semaphore(threads * 2);
+        }
+
+        public void accept(String element) {
+            chunk.add(element);
+            if (chunk.size() == CHUNK_SIZE) {
+                submit();
+            }
+        }
+
+        /**
+         * Hands the current chunk to the pool, waiting if too many chunks
+         * have not been turned into events yet.
+         */
+        private void submit() {
+            List<String> elements = chunk;
+            int chunkStart = nextID;
+            nextID += elements.size();
+            chunk = new ArrayList<>(CHUNK_SIZE);
+            chunksAhead.acquireUninterruptibly();
+            chunks.add(pool.submit(() -> {
+                try {
+                    Event[] events = new Event[elements.size()];
+                    for (int i = 0; i < events.length; i++) {
+                        events[i] = eventFromJson(chunkStart + i, new JSONObject(elements.get(i)));
+                    }
+                    return events;
+                }
+                finally {
+                    chunksAhead.release();
+                }
+            }));
+        }
+
+        /**
+         * Waits for every chunk and adds the events to the event list in the
+         * order they are held in the file.
+         * @throws JSONException Thrown when an element of the events array
+         * is not a JSON object.
+         */
+        void merge() throws JSONException {
+            if (!chunk.isEmpty()) {
+                submit();
+            }
+            int eventID = firstID;
+            for (ForkJoinTask<Event[]> task : chunks) {
+                for (Event bookableEvent : task.join()) {
+                    if (bookableEvent != null) {
+                        bookableEvents.put(eventID, bookableEvent);
+                    }
+                    eventID++;
+                }
+            }
+            uniqueID.set(eventID);
+        }
+
+        public void close() {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,383 @@
+package com.ibm.mq.badge;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import com.ibm.mq.events.Event;
+
+/**
+ * A binary copy of the events and their tickets left, mapped into memory so
+ * that a restart does not have to parse the <b>JSON</b> data file and a sale
+ * only changes a few bytes in place.
+ *
+ * <p>The file starts with a header, followed by one fixed-width record per
+ * event ID and then a table of the strings of every event:
+ * <ul>
+ * <li>Header of {@value #HEADER_SIZE} bytes - magic number, format version,
+ * number of records, offset, length and <tt>CRC32</tt> of the string table,
+ * the last journal sequence applied, and the size and time last modified of
+ * the data file the snapshot matches.
+ * <li>Record of {@value #RECORD_SIZE} bytes - journal sequence last applied
+ * to the event, tickets left, and offset of the event's strings in the
+ * string table, or -1 if there is no event with that ID.
+ * <li>String table - name, location, date and time of each event, each as
+ * a length followed by <b>UTF-8</b> bytes.
+ * </ul>
+ *
+ * <p>Journal records are applied by the {@link DeductionJournal} once they
+ * are on disk, in the order of their sequence. A sale writes the tickets
+ * left and the sequence of its record into the record of the event, then
+ * the sequence into the header. On start up the header sequence tells the
+ * journal where to replay from, and the sequence of each record stops a
+ * journal record from being applied twice. The snapshot is only used if it
+ * matches the data file, so one left behind by a run with it turned off is
+ * rebuilt from the data file.
+ * @version 1.0
+ * @see EventManager
+ * @see DeductionJournal
+ */
+public class InventorySnapshot {
+    private static final Logger logger = Logger.getLogger("com.ibm.mq.badge");
+
+    private static final int MAGIC = 0x4D514254;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 48;
+    private static final int RECORD_SIZE = 16;
+
+    private static final int COUNT_OFFSET = 8;
+    private static final int TABLE_OFFSET = 12;
+    private static final int TABLE_LENGTH = 16;
+    private static final int TABLE_CRC = 20;
+    private static final int SEQUENCE_OFFSET = 24;
+    private static final int DATA_SIZE_OFFSET = 32;
+    private static final int DATA_MODIFIED_OFFSET = 40;
+
+    private static final int RECORD_SEQUENCE = 0;
+    private static final int RECORD_TICKETS = 8;
+    private static final int RECORD_STRINGS = 12;
+
+    /**
+     * Added to the filename to give the temporary file a new snapshot is
+     * written to before it is moved over the old one.
+     */
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path path;
+
+    /**
+     * The mapped file, null until the snapshot has been loaded or written.
+     */
+    private MappedByteBuffer buffer = null;
+    private int count = 0;
+
+    /**
+     * Creates a snapshot that will be kept in the file given. Nothing is read
+     * or written until {@link #load(Path)} or
+     * {@link #write(Map, AtomicIntegerArray, long, Path)} is called.
+     * @param filename The file the snapshot is kept in.
+     */
+    public InventorySnapshot(String filename) {
+        this.path = Paths.get(filename);
+    }
+
+    public String getFilename() {
+        return path.toString();
+    }
+
+    /**
+     * Whether the snapshot has been loaded or written and is being kept up
+     * to date.
+     */
+    public synchronized boolean isOpen() {
+        return buffer != null;
+    }
+
+    /**
+     * Gets the number of records, one more than the largest event ID.
+     */
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * Gets the last journal sequence applied to the snapshot.
+     */
+    public synchronized long getSequence() {
+        return (buffer != null) ? buffer.getLong(SEQUENCE_OFFSET) : 0;
+    }
+
+    /**
+     * Gets the last journal sequence applied to an event.
+     * @param eventID ID of the event.
+     * @return The sequence, or 0 if the event is not in the snapshot.
+     */
+    public synchronized long getSequence(int eventID) {
+        if (buffer == null || eventID < 0 || eventID >= count) {
+            return 0;
+        }
+        return buffer.getLong(recordOffset(eventID) + RECORD_SEQUENCE);
+    }
+
+    /**
+     * Maps the snapshot and checks it, then creates the events held in it.
+     * The snapshot is not used if it is missing, is not whole, or was not
+     * written alongside the current data file.
+     * @param dataFile The <b>JSON</b> data file the snapshot should match.
+     * @return The events with their tickets left, keyed by event ID, or null
+     * if the snapshot can not be used.
+     */
+    public synchronized HashMap<Integer, Event> load(Path dataFile) {
+        long start = System.nanoTime();
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+                logger.warning("Snapshot '" + path + "' is not whole, rebuilding it from the data file");
+                return null;
+            }
+            mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        }
+        catch (NoSuchFileException e) {
+            logger.info("No snapshot found at '" + path + "', creating one from the data file");
+            return null;
+        }
+        catch (IOException e) {
+            logger.warning("Could not map snapshot '" + path + "': " + e.getMessage());
+            return null;
+        }
+
+        String problem = verify(mapped, dataFile);
+        if (problem != null) {
+            logger.warning("Snapshot '" + path + "' " + problem + ", rebuilding it from the data file");
+            return null;
+        }
+        int records = mapped.getInt(COUNT_OFFSET);
+        int table = mapped.getInt(TABLE_OFFSET);
+        HashMap<Integer, Event> events = new HashMap<>();
+        ByteBuffer strings = mapped.duplicate();
+        for (int id = 0; id < records; id++) {
+            int record = HEADER_SIZE + id * RECORD_SIZE;
+            int stringOffset = mapped.getInt(record + RECORD_STRINGS);
+            if (stringOffset < 0) {
+                continue;
+            }
+            strings.position(table + stringOffset);
+            Event bookableEvent = new Event();
+            bookableEvent.setEventID(id);
+            bookableEvent.setTitle(readString(strings));
+            bookableEvent.setLocation(readString(strings));
+            bookableEvent.setDate(readString(strings));
+            bookableEvent.setTime(readString(strings));
+            bookableEvent.setCapacity(mapped.getInt(record + RECORD_TICKETS));
+            events.put(id, bookableEvent);
+        }
+        buffer = mapped;
+        count = records;
+        logger.info("Mapped " + events.size() + " events from snapshot '" + path + "' in " +
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+        return events;
+    }
+
+    /**
+     * Checks the header and string table of a mapped snapshot.
+     * @return What is wrong with the snapshot, or null if it can be used.
+     */
+    private String verify(MappedByteBuffer mapped, Path dataFile) {
+        if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) {
+            return "is not a snapshot this version can read";
+        }
+        int records = mapped.getInt(COUNT_OFFSET);
+        int table = mapped.getInt(TABLE_OFFSET);
+        int tableLength = mapped.getInt(TABLE_LENGTH);
+        if (records < 0 || table != HEADER_SIZE + (long) records * RECORD_SIZE || tableLength < 0
+            || (long) table + tableLength != mapped.capacity()) {
+            return "is not whole";
+        }
+        CRC32 crc = new CRC32();
+        ByteBuffer tableBytes = mapped.duplicate();
+        tableBytes.position(table);
+        crc.update(tableBytes);
+        if ((int) crc.getValue() != mapped.getInt(TABLE_CRC)) {
+            return "has a damaged string table";
+        }
+        for (int id = 0; id < records; id++) {
+            int stringOffset = mapped.getInt(HEADER_SIZE + id * RECORD_SIZE + RECORD_STRINGS);
+            if (stringOffset >= tableLength) {
+                return "has a record pointing outside the string table";
+            }
+        }
+        try {
+            if (mapped.getLong(DATA_SIZE_OFFSET) != Files.size(dataFile)
+                || mapped.getLong(DATA_MODIFIED_OFFSET) != Files.getLastModifiedTime(dataFile).toMillis()) {
+                return "does not match '" + dataFile + "'";
+            }
+        }
+        catch (IOException e) {
+            return "could not be matched to '" + dataFile + "'";
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether the snapshot can be loaded in place of the data file
+     * given, making the same checks as {@link #load(Path)}: the header, the
+     * <tt>CRC32</tt> of the string table, every record, and the size and
+     * time last modified of the data file. The file is mapped read only
+     * for the check and nothing is kept, so this can be done before the
+     * snapshot is loaded.
+     * @param dataFile The <b>JSON</b> data file the snapshot should match.
+     * @return True if the snapshot is whole and matches the data file.
+     */
+    public boolean matches(Path dataFile) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+                return false;
+            }
+            return verify(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), dataFile) == null;
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes a new snapshot of the events given and maps it. The snapshot is
+     * written to a temporary file, forced to disk and then moved over the
+     * old one.
+     * @param events The events, keyed by event ID.
+     * @param tickets Tickets left for each event, indexed by event ID.
+     * @param sequence The last journal sequence held in the tickets left.
+     * @param dataFile The <b>JSON</b> data file holding the same events.
+     * @throws IOException Thrown if the snapshot could not be written.
+     */
+    public synchronized void write(Map<Integer, Event> events, AtomicIntegerArray tickets, long sequence, Path dataFile) throws IOException {
+        int records = tickets.length();
+        ArrayList<byte[]> strings = new ArrayList<>();
+        int[] stringOffsets = new int[records];
+        int tableLength = 0;
+        for (int id = 0; id < records; id++) {
+            Event bookableEvent = events.get(id);
+            if (bookableEvent == null) {
+                stringOffsets[id] = -1;
+                continue;
+            }
+            stringOffsets[id] = tableLength;
+            for (String value : new String[] {bookableEvent.getTitle(), bookableEvent.getLocation(),
+                    bookableEvent.getDate(), bookableEvent.getTime()}) {
+                byte[] bytes = String.valueOf(value).getBytes(StandardCharsets.UTF_8);
+                strings.add(bytes);
+                tableLength += 4 + bytes.length;
+            }
+        }
+
+        int table = HEADER_SIZE + records * RECORD_SIZE;
+        ByteBuffer data = ByteBuffer.allocate(table + tableLength);
+        data.putInt(MAGIC).putInt(VERSION).putInt(records).putInt(table).putInt(tableLength).putInt(0)
+            .putLong(sequence).putLong(Files.size(dataFile)).putLong(Files.getLastModifiedTime(dataFile).toMillis());
+        for (int id = 0; id < records; id++) {
+            data.putLong(sequence).putInt(tickets.get(id)).putInt(stringOffsets[id]);
+        }
+        for (byte[] bytes : strings) {
+            data.putInt(bytes.length).put(bytes);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data.array(), table, tableLength);
+        data.putInt(TABLE_CRC, (int) crc.getValue());
+        data.flip();
+
+        Path temp = Paths.get(path + TEMP_SUFFIX);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            channel.force(true);
+        }
+        try {
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        }
+        count = records;
+        logger.info("Wrote snapshot of " + events.size() + " events to '" + path + "'");
+    }
+
+    /**
+     * Applies a journal record to the tickets left of its event in place.
+     * Records must be applied in the order of their sequence, and only once
+     * they are on disk.
+     * @param sequence Sequence of the journal record.
+     * @param eventID ID of the event the tickets belong to.
+     * @param delta Change in tickets left, negative for a sale.
+     */
+    public synchronized void apply(long sequence, int eventID, int delta) {
+        if (buffer == null) {
+            return;
+        }
+        if (eventID >= 0 && eventID < count) {
+            int record = recordOffset(eventID);
+            buffer.putInt(record + RECORD_TICKETS, buffer.getInt(record + RECORD_TICKETS) + delta);
+            buffer.putLong(record + RECORD_SEQUENCE, sequence);
+        }
+        buffer.putLong(SEQUENCE_OFFSET, sequence);
+    }
+
+    /**
+     * Records the size and time last modified of the data file after it has
+     * been saved, as the snapshot still holds the same events.
+     * @param dataFile The <b>JSON</b> data file.
+     */
+    public synchronized void matchDataFile(Path dataFile) {
+        if (buffer == null) {
+            return;
+        }
+        try {
+            buffer.putLong(DATA_SIZE_OFFSET, Files.size(dataFile));
+            buffer.putLong(DATA_MODIFIED_OFFSET, Files.getLastModifiedTime(dataFile).toMillis());
+            buffer.force();
+        }
+        catch (IOException e) {
+            logger.warning("Could not match snapshot '" + path + "' to '" + dataFile + "', it will be rebuilt on restart");
+        }
+    }
+
+    /**
+     * Forces the snapshot to disk and stops keeping it up to date.
+     */
+    public synchronized void close() {
+        if (buffer != null) {
+            buffer.force();
+            buffer = null;
+        }
+    }
+
+    private int recordOffset(int eventID) {
+        return HEADER_SIZE + eventID * RECORD_SIZE;
+    }
+
+    private String readString(ByteBuffer strings) {
+        byte[] bytes = new byte[strings.getInt()];
+        strings.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -1,6 +1,7 @@
 package com.ibm.mq.badge;
 
 import com.ibm.mq.events.*;
+import com.ibm.mq.exceptions.CouldNotDeductTicketsException;
 import java.util.HashMap;
 import java.util.logging.*;
 import java.io.IOException;
@@ -15,6 +16,7 @@ import java.util.Date;
  * @see StorageManager
  * @see EventManager
  * @see Cashier
+ * @see CashierPool
  * @version 1.0
  */
 public class Manager {
@@ -33,7 +35,7 @@ public class Manager {
      *
      * <p>The {@code main} of the application is where the creation
      * of {@link com.ibm.mq.badge.StorageManager}, {@link com.ibm.mq.badge.EventManager}
-     * and {@link com.ibm.mq.badge.Cashier} resides.
+     * and the pool of {@link com.ibm.mq.badge.Cashier} workers resides.
      *
      * @param args Command line arguments
      */
@@ -41,13 +43,34 @@ public class Manager {
         Thread.currentThread().setName("Main");
         initialiseLogging();
 
-        // Setting storage manager properties and checking env
-        StorageManager storageManager = new StorageManager("Data.json");
+        // Setting storage manager properties and checking env, the snapshot
+        // being set first so a data file it matches is not read through
+        boolean journalled = Settings.getBoolean(Settings.JOURNAL, true);
+        InventorySnapshot snapshot = null;
+        if (journalled && Settings.getBoolean(Settings.BINARY_SNAPSHOT, false)) {
+            snapshot = new InventorySnapshot("Data.snapshot");
+        }
+        StorageManager storageManager = new StorageManager("Data.json", snapshot);
+        if (journalled) {
+            DeductionJournal journal = new DeductionJournal("Data.journal");
+            storageManager.setJournal(journal);
+            if (Settings.getBoolean(Settings.GROUP_COMMIT, false)) {
+                journal.startGroupCommit(Settings.getInt(Settings.GROUP_COMMIT_MILLIS, 5),
+                    Settings.getInt(Settings.GROUP_COMMIT_RECORDS, 64));
+            }
+        }
 
         // Setting up the event manager and creating initial events
         logger.fine("-----");
         logger.info("Creating Events");
         EventManager eventManager = new EventManager(storageManager);
+        ProcessedRequests processedRequests = null;
+        int processedRequestsSize = Settings.getInt(Settings.PROCESSED_REQUESTS_CACHE_SIZE, 10000);
+        if (processedRequestsSize > 0) {
+            processedRequests = new ProcessedRequests(processedRequestsSize,
+                Settings.getInt(Settings.PROCESSED_REQUESTS_TTL_MILLIS, 600000));
+            eventManager.setProcessedRequests(processedRequests);
+        }
         eventManager.setupAndSetEvents("Events");
         HashMap<Integer, Event> bookableEvents = eventManager.getBookableEvents();
         logger.info(("New total of " + bookableEvents.values().size() + " events"));
@@ -58,27 +81,61 @@ public class Manager {
         * be the classes making the mq connections.
         */
         EnvSetter envSetter = new EnvSetter("mqConfig.json");
-        Cashier cashier = new Cashier(eventManager, envSetter);
+        CashierPool cashiers = new CashierPool(eventManager, envSetter,
+            Settings.getInt(Settings.CASHIER_WORKERS, 1));
+        if ("listener".equalsIgnoreCase(Settings.getString(Settings.CASHIER_MODE, "poll"))) {
+            cashiers.setListenerMode(Settings.getInt(Settings.LISTENER_WORKERS, 4),
+                Settings.getInt(Settings.LISTENER_QUEUE_DEPTH, 100));
+        }
+        if (Settings.getBoolean(Settings.SHARD_BY_EVENT, false)) {
+            cashiers.shardByEvent();
+        }
+        DeductionJournal journal = storageManager.getJournal();
+        int highWatermark = Settings.getInt(Settings.PERSISTENCE_HIGH_WATERMARK_MILLIS, 100);
+        if (journal != null && highWatermark > 0) {
+            BackpressureGate gate = new BackpressureGate("Journal", journal::getFlushLagMillis,
+                highWatermark, Settings.getInt(Settings.PERSISTENCE_LOW_WATERMARK_MILLIS, 20));
+            journal.setFlushListener(gate::signal);
+            cashiers.setGate(gate);
+        }
+        cashiers.setProcessedRequests(processedRequests);
+        cashiers.setStaleRequests(Settings.getInt(Settings.MAX_REQUEST_AGE_MILLIS, 0),
+            Settings.getBoolean(Settings.DROP_STALE_REQUESTS, false));
+        cashiers.setBatchSize(Settings.getInt(Settings.CASHIER_BATCH_SIZE, 1));
+        cashiers.setVirtualThreads(Settings.getBoolean(Settings.VIRTUAL_THREADS, false));
+        ConfirmationWriter confirmationWriter = null;
+        if (Settings.getBoolean(Settings.CONFIRMATION_WRITER, false)) {
+            confirmationWriter = new ConfirmationWriter(envSetter, "confirmation",
+                Settings.getInt(Settings.CONFIRMATION_QUEUE_DEPTH, 1000),
+                Settings.getInt(Settings.CONFIRMATION_MAX_OUTSTANDING, 100));
+            if (confirmationWriter.start()) {
+                cashiers.setConfirmationWriter(confirmationWriter);
+            }
+        }
         AdvertManager advertManager = new AdvertManager(envSetter);
         advertManager.connect("newTickets");
 
         /*
-        * Start the cashier and wait for the cashier to listen to requests
+        * Avoids an illegal reflective access operation caused by jaxb dependencies.
+        * Set before the first advert as the JAXB context is created once and kept.
         */
-        new Thread(cashier).start();
-        // Continuous loop for a constant check if the cashier is listening
+        final String key = "org.glassfish.jaxb.runtime.v2.bytecode.ClassTailor.noOptimize";
+        System.setProperty(key, "true");
+        XmlSerializer.setFormattedOutput(Settings.getBoolean(Settings.FORMATTED_ADVERTS, true));
+
+        /*
+        * Start the cashiers and wait for the cashiers to listen to requests
+        */
+        cashiers.start("purchase", "confirmation");
+        // Continuous loop for a constant check if the cashiers are listening
         while (true) {
-            if (cashier.isListeningToResponse()) {
+            if (cashiers.isListeningToResponse()) {
 
                 // For every event created, publish it in 30 second intervals
                 for (Event bookableEvent : bookableEvents.values()) {
                     logger.info("-----");
                     logger.info("Publishing advert...");
 
-                    // Avoids an illegal reflective access operation caused by jaxb dependencies
-                    final String key = "org.glassfish.jaxb.runtime.v2.bytecode.ClassTailor.noOptimize";
-                    System.setProperty(key, "true");
-
                     advertManager.publishAdvert(bookableEvent);
 
                     logger.info("Advert for '" + bookableEvent.getTitle() + "' has been published");
@@ -97,7 +154,7 @@ public class Manager {
             }
             else {
                 try {
-                    // If the cashier is not ready yet then wait 1 second.
+                    // If the cashiers are not ready yet then wait 1 second.
                     Thread.sleep(1000);
                 }
                 catch (InterruptedException e) {
@@ -113,8 +170,19 @@ public class Manager {
         */
         logger.info("Closing connections and stopping threads");
         advertManager.closeConnections();
-        cashier.close();
+        cashiers.close();
+        cashiers.getMetrics().log();
+        if (confirmationWriter != null) {
+            confirmationWriter.close();
+        }
         envSetter.closeConnections();
+        try {
+            eventManager.compact();
+        }
+        catch (CouldNotDeductTicketsException e) {
+            logger.warning(e.getMessage());
+        }
+        storageManager.close();
         logger.info("Closed all connections");
     }
 
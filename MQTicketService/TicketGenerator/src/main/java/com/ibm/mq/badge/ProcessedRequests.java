@@ -0,0 +1,178 @@
+package com.ibm.mq.badge;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the outcome of the requests recently handled, keyed by their
+ * correlation ID, so that a request received again, because the reseller
+ * retried or MQ redelivered it, gets the same response without tickets
+ * being deducted a second time.
+ *
+ * <p>A request is reserved with {@link #reserve(String, long)} before
+ * tickets are deducted for it, so a copy of the request received while it
+ * is still being handled finds it in flight rather than deducting a second
+ * time. The copy waits for the outcome so it can be answered with it too.
+ * Only outcomes that would be the same if the request were tried again
+ * are recorded; a reservation for a request that failed for a passing
+ * reason, such as the data not saving, is removed.
+ *
+ * <p>The number of requests remembered is bounded, the least recently used
+ * being forgotten first. Requests in flight are never forgotten, as that
+ * would let a copy of one deduct again, so the bound is exceeded by at
+ * most the number of requests being handled at once. An outcome is only used for a set time after
+ * it was recorded. On start up the {@link EventManager} adds the requests
+ * found in the journal, so deductions made just before a restart are
+ * remembered too.
+ * @version 1.0
+ * @see Cashier
+ * @see EventManager
+ */
+public class ProcessedRequests {
+    /**
+     * Returned by {@link #reserve(String, long)} for a request that is still
+     * being handled.
+     */
+    public static final String IN_FLIGHT = "InFlight";
+
+    /**
+     * An outcome and when it was recorded.
+     */
+    private static class Outcome {
+        private final String outcome;
+        private final long recordedAt;
+
+        Outcome(String outcome, long recordedAt) {
+            this.outcome = outcome;
+            this.recordedAt = recordedAt;
+        }
+    }
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final LinkedHashMap<String, Outcome> entries;
+
+    /**
+     * Creates an empty cache.
+     * @param maxEntries Largest number of requests remembered.
+     * @param ttlMillis Time in milliseconds an outcome is used for after it
+     * was recorded.
+     */
+    public ProcessedRequests(int maxEntries, long ttlMillis) {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<String, Outcome>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Outcome> eldest) {
+                if (size() <= ProcessedRequests.this.maxEntries) {
+                    return false;
+                }
+                // Forget the least recently used request that is not in flight
+                Iterator<Outcome> oldest = values().iterator();
+                while (oldest.hasNext()) {
+                    if (oldest.next().outcome != IN_FLIGHT) {
+                        oldest.remove();
+                        break;
+                    }
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Gets the outcome of a request handled before.
+     * @param correlationID Correlation ID of the request.
+     * @return The outcome, {@link #IN_FLIGHT} if the request is still
+     * being handled, or null if the request is not remembered or its
+     * outcome is too old.
+     */
+    public synchronized String get(String correlationID) {
+        if (correlationID == null) {
+            return null;
+        }
+        Outcome entry = entries.get(correlationID);
+        if (entry == null) {
+            return null;
+        }
+        // A request in flight is held until it is settled, however long it takes
+        if (entry.outcome != IN_FLIGHT && System.currentTimeMillis() - entry.recordedAt > ttlMillis) {
+            entries.remove(correlationID);
+            return null;
+        }
+        return entry.outcome;
+    }
+
+    /**
+     * Reserves a request before it is handled, in one step with checking
+     * whether it was handled before. The reservation is settled with
+     * {@link #put(String, String)} or {@link #remove(String)}. If the request
+     * is in flight, waits for it to be settled; if its reservation is
+     * removed, the request is reserved for the caller instead.
+     * @param correlationID Correlation ID of the request.
+     * @param waitMillis Longest time in milliseconds to wait for a request
+     * in flight to be settled.
+     * @return Null if the request was reserved, or can not be as it has no
+     * correlation ID. Otherwise the outcome it was handled with before, or
+     * {@link #IN_FLIGHT} if it was still being handled after waiting.
+     * @throws InterruptedException Thrown if interrupted while waiting.
+     */
+    public synchronized String reserve(String correlationID, long waitMillis) throws InterruptedException {
+        if (correlationID == null) {
+            return null;
+        }
+        long deadline = System.currentTimeMillis() + waitMillis;
+        String outcome = get(correlationID);
+        while (outcome == IN_FLIGHT) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return IN_FLIGHT;
+            }
+            wait(remaining);
+            outcome = get(correlationID);
+        }
+        if (outcome == null) {
+            entries.put(correlationID, new Outcome(IN_FLIGHT, System.currentTimeMillis()));
+        }
+        return outcome;
+    }
+
+    /**
+     * Records the outcome of a request.
+     * @param correlationID Correlation ID of the request, ignored if null.
+     * @param outcome The response sent.
+     */
+    public void put(String correlationID, String outcome) {
+        put(correlationID, outcome, System.currentTimeMillis());
+    }
+
+    /**
+     * Records the outcome of a request handled at the time given.
+     * @param correlationID Correlation ID of the request, ignored if null.
+     * @param outcome The response sent.
+     * @param recordedAt Time in milliseconds the request was handled.
+     */
+    public synchronized void put(String correlationID, String outcome, long recordedAt) {
+        if (correlationID != null) {
+            entries.put(correlationID, new Outcome(outcome, recordedAt));
+            notifyAll();
+        }
+    }
+
+    /**
+     * Forgets a request, such as one that was rolled back and will be
+     * handled again.
+     * @param correlationID Correlation ID of the request.
+     */
+    public synchronized void remove(String correlationID) {
+        if (correlationID != null) {
+            entries.remove(correlationID);
+            notifyAll();
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,287 @@
+package com.ibm.mq.badge;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.JMSRuntimeException;
+import javax.jms.Message;
+
+import com.ibm.mq.events.TicketRequest;
+import com.ibm.mq.exceptions.MalformedRequestException;
+
+/**
+ * Decodes the ticket requests received by the {@link Cashier}. The body of
+ * a request is the <b>XML</b> written by the reseller's
+ * <tt>RequestTickets</tt>, of which only the <tt>eventID</tt> and
+ * <tt>numberRequested</tt> tags are needed.
+ *
+ * <p>Rather than searching the body once per tag, the body is scanned once
+ * from start to end. Each start tag's name is compared in place and the
+ * values wanted are read as numbers straight from the characters that
+ * follow, so no arrays or substrings are created.
+ *
+ * <p>A reseller may instead send a request in the compact binary format, as
+ * a <tt>BytesMessage</tt> holding only the fields below, written with the
+ * methods of <tt>BytesMessage</tt> named in brackets:
+ * <ol>
+ * <li>Format version, {@link #BINARY_VERSION} (<tt>writeByte</tt>)
+ * <li>Event ID (<tt>writeInt</tt>)
+ * <li>Number of tickets requested (<tt>writeInt</tt>)
+ * <li>Reseller ID (<tt>writeUTF</tt>)
+ * <li>Deadline in milliseconds since the epoch, or 0 for none
+ * (<tt>writeLong</tt>)
+ * </ol>
+ * The response to a binary request is binary too, see
+ * {@link ResponseEncoder}.
+ *
+ * <p>When an <b>XML</b> request also carries the event and the number of
+ * tickets as the {@link #EVENT_ID_PROPERTY} and
+ * {@link #NUMBER_REQUESTED_PROPERTY} integer properties, they are read from
+ * there and the body is not read at all. A binary request is always read
+ * from its body, which is as cheap to read as the properties and also
+ * holds the reseller ID and deadline; where its properties differ from
+ * the body, the body wins. A binary request need only carry the
+ * {@link #EVENT_ID_PROPERTY} property, for routing.
+ * @version 1.0
+ * @see Cashier
+ * @see TicketRequest
+ */
+public class RequestDecoder {
+    /**
+     * Name of the integer message property the reseller sets to the event
+     * requested, so that requests can be routed with a message selector
+     * without reading the body.
+     */
+    public static final String EVENT_ID_PROPERTY = "eventID";
+
+    /**
+     * Name of the integer message property the reseller sets to the number
+     * of tickets requested.
+     */
+    public static final String NUMBER_REQUESTED_PROPERTY = "numberRequested";
+
+    /**
+     * Name of the long message property the reseller sets to the time, in
+     * milliseconds since the epoch, after which it will no longer be
+     * waiting for the response.
+     */
+    public static final String DEADLINE_PROPERTY = "replyDeadline";
+
+    /**
+     * Version of the binary format written as the first byte of a binary
+     * request or response.
+     */
+    public static final byte BINARY_VERSION = 1;
+
+    private static final String EVENT_ID = "eventID";
+    private static final String NUMBER_REQUESTED = "numberRequested";
+
+    private RequestDecoder() {}
+
+    /**
+     * Decodes a request from a message received by the {@link Cashier}.
+     * @param message The message received.
+     * @return The request held in the message, with its correlation ID.
+     * @throws MalformedRequestException Thrown when the message does not
+     * hold a valid request.
+     */
+    public static TicketRequest decode(Message message) throws MalformedRequestException {
+        if (isBinary(message)) {
+            return decode((BytesMessage) message);
+        }
+        TicketRequest fromProperties = decodeProperties(message);
+        if (fromProperties != null) {
+            return fromProperties;
+        }
+        String body;
+        String correlationID;
+        try {
+            body = message.getBody(String.class);
+            correlationID = message.getJMSCorrelationID();
+        }
+        catch (JMSException | JMSRuntimeException e) {
+            throw new MalformedRequestException("Could not read request from message", e);
+        }
+        TicketRequest request = decode(body);
+        request.setCorrelationID(correlationID);
+        return request;
+    }
+
+    /**
+     * Decodes a request from the properties of a message, without reading
+     * the body.
+     * @param message The message received.
+     * @return The request, with its correlation ID, or null if the message
+     * does not carry both properties as whole numbers.
+     */
+    private static TicketRequest decodeProperties(Message message) {
+        try {
+            if (message.propertyExists(EVENT_ID_PROPERTY) && message.propertyExists(NUMBER_REQUESTED_PROPERTY)) {
+                TicketRequest request = new TicketRequest(message.getIntProperty(EVENT_ID_PROPERTY),
+                    message.getIntProperty(NUMBER_REQUESTED_PROPERTY));
+                request.setCorrelationID(message.getJMSCorrelationID());
+                return request;
+            }
+        }
+        catch (JMSException | JMSRuntimeException | NumberFormatException e) {
+            // Fall back to the request in the body
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether a message holds a request in the binary format.
+     * @param message The message received.
+     * @return True if the request, and so its response, is binary.
+     */
+    public static boolean isBinary(Message message) {
+        return message instanceof BytesMessage;
+    }
+
+    /**
+     * Decodes a request from the body of a message in the binary format.
+     * @param message The message received.
+     * @return The request held in the message, with its correlation ID.
+     * @throws MalformedRequestException Thrown when the body is too short or
+     * was written with a version of the format that is not known.
+     */
+    private static TicketRequest decode(BytesMessage message) throws MalformedRequestException {
+        try {
+            byte version = message.readByte();
+            if (version != BINARY_VERSION) {
+                throw new MalformedRequestException("Binary request has unknown version " + version);
+            }
+            TicketRequest request = new TicketRequest(message.readInt(), message.readInt());
+            request.setResellerID(message.readUTF());
+            request.setDeadline(message.readLong());
+            request.setCorrelationID(message.getJMSCorrelationID());
+            return request;
+        }
+        catch (JMSException | JMSRuntimeException e) {
+            throw new MalformedRequestException("Could not read binary request from message", e);
+        }
+    }
+
+    /**
+     * Reads the event requested from the <tt>eventID</tt> property of a
+     * message, without reading the body.
+     * @param message The message received.
+     * @return The event ID, or null if the message does not have the
+     * property or it is not a whole number.
+     */
+    public static Integer getEventIDProperty(Message message) {
+        try {
+            if (message.propertyExists(EVENT_ID_PROPERTY)) {
+                return message.getIntProperty(EVENT_ID_PROPERTY);
+            }
+        }
+        catch (JMSException | JMSRuntimeException | NumberFormatException e) {
+            // Fall back to the event ID in the body
+        }
+        return null;
+    }
+
+    /**
+     * Decodes a request from the <b>XML</b> body of a message.
+     * @param xml The <b>XML</b> body.
+     * @return The request held in the body.
+     * @throws MalformedRequestException Thrown when a tag is missing, or the
+     * value of a tag is not a whole number.
+     */
+    public static TicketRequest decode(String xml) throws MalformedRequestException {
+        if (xml == null) {
+            throw new MalformedRequestException("Request has no body");
+        }
+        boolean hasEventID = false;
+        boolean hasNumberRequested = false;
+        int eventID = 0;
+        int numberRequested = 0;
+        int length = xml.length();
+        int i = xml.indexOf('<');
+        while (i >= 0 && i < length && !(hasEventID && hasNumberRequested)) {
+            int nameStart = i + 1;
+            int nameEnd = nameStart;
+            while (nameEnd < length && isNameChar(xml.charAt(nameEnd))) {
+                nameEnd++;
+            }
+            int close = xml.indexOf('>', nameEnd);
+            if (close < 0) {
+                break;
+            }
+            if (!hasEventID && isTag(xml, nameStart, nameEnd, EVENT_ID)) {
+                eventID = parseInt(xml, close + 1, EVENT_ID);
+                hasEventID = true;
+            }
+            else if (!hasNumberRequested && isTag(xml, nameStart, nameEnd, NUMBER_REQUESTED)) {
+                numberRequested = parseInt(xml, close + 1, NUMBER_REQUESTED);
+                hasNumberRequested = true;
+            }
+            i = xml.indexOf('<', close + 1);
+        }
+        if (!hasEventID) {
+            throw new MalformedRequestException("Request is missing '" + EVENT_ID + "'");
+        }
+        if (!hasNumberRequested) {
+            throw new MalformedRequestException("Request is missing '" + NUMBER_REQUESTED + "'");
+        }
+        return new TicketRequest(eventID, numberRequested);
+    }
+
+    /**
+     * Checks whether the characters of a tag name are the name given.
+     */
+    private static boolean isTag(String xml, int nameStart, int nameEnd, String name) {
+        return nameEnd - nameStart == name.length() && xml.regionMatches(nameStart, name, 0, name.length());
+    }
+
+    private static boolean isNameChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.' || c == ':';
+    }
+
+    /**
+     * Reads a whole number from the text of a tag, allowing whitespace
+     * either side of it.
+     * @param xml The <b>XML</b> body.
+     * @param start Index of the first character after the start tag.
+     * @param tagName Name of the tag, used in the error message.
+     * @return The number read.
+     * @throws MalformedRequestException Thrown when the text is not a whole
+     * number or is too large.
+     */
+    private static int parseInt(String xml, int start, String tagName) throws MalformedRequestException {
+        int length = xml.length();
+        int i = start;
+        while (i < length && Character.isWhitespace(xml.charAt(i))) {
+            i++;
+        }
+        boolean negative = false;
+        if (i < length && (xml.charAt(i) == '-' || xml.charAt(i) == '+')) {
+            negative = xml.charAt(i) == '-';
+            i++;
+        }
+        long value = 0;
+        int digits = 0;
+        while (i < length) {
+            char c = xml.charAt(i);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            value = value * 10 + (c - '0');
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                throw new MalformedRequestException("Value of '" + tagName + "' is too large");
+            }
+            digits++;
+            i++;
+        }
+        while (i < length && Character.isWhitespace(xml.charAt(i))) {
+            i++;
+        }
+        if (digits == 0 || i >= length || xml.charAt(i) != '<') {
+            throw new MalformedRequestException("Value of '" + tagName + "' is not a whole number");
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE) {
+            throw new MalformedRequestException("Value of '" + tagName + "' is too large");
+        }
+        return (int) value;
+    }
+}
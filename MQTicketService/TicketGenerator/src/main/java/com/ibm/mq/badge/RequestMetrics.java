@@ -0,0 +1,128 @@
+package com.ibm.mq.badge;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Counts what happens to the requests handled by the {@link Cashier}
+ * workers. One instance is shared by every worker in a {@link CashierPool}.
+ * The counts are kept in <tt>LongAdder</tt>s so workers counting at the
+ * same time do not contend with each other.
+ * @version 1.0
+ * @see CashierPool
+ */
+public class RequestMetrics {
+    private static final Logger logger = Logger.getLogger("com.ibm.mq.badge");
+
+    private final LongAdder received = new LongAdder();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder malformed = new LongAdder();
+    private final LongAdder soldOut = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder pastDeadline = new LongAdder();
+    private final LongAdder tooOld = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+
+    public void received() {
+        received.increment();
+    }
+
+    public void accepted() {
+        accepted.increment();
+    }
+
+    public void rejected() {
+        rejected.increment();
+    }
+
+    public void malformed() {
+        malformed.increment();
+    }
+
+    public void soldOut() {
+        soldOut.increment();
+    }
+
+    public void expired() {
+        expired.increment();
+    }
+
+    public void pastDeadline() {
+        pastDeadline.increment();
+    }
+
+    public void tooOld() {
+        tooOld.increment();
+    }
+
+    public void dropped() {
+        dropped.increment();
+    }
+
+    public void duplicate() {
+        duplicates.increment();
+    }
+
+    public long getReceived() {
+        return received.sum();
+    }
+
+    public long getAccepted() {
+        return accepted.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getMalformed() {
+        return malformed.sum();
+    }
+
+    public long getSoldOut() {
+        return soldOut.sum();
+    }
+
+    public long getExpired() {
+        return expired.sum();
+    }
+
+    public long getPastDeadline() {
+        return pastDeadline.sum();
+    }
+
+    public long getTooOld() {
+        return tooOld.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    /**
+     * Gets the number of requests that were stale by the time they were
+     * taken off the queue, for any of the reasons counted.
+     * @return The number of stale requests.
+     */
+    public long getStale() {
+        return getExpired() + getPastDeadline() + getTooOld();
+    }
+
+    /**
+     * Writes the counts to the log.
+     */
+    public void log() {
+        logger.info("Requests received: " + getReceived() + ", accepted: " + getAccepted()
+            + ", rejected: " + getRejected() + " (malformed: " + getMalformed()
+            + ", sold out: " + getSoldOut() + ", stale: " + getStale() + "), stale dropped: " + getDropped()
+            + ", answered from earlier outcome: " + getDuplicates());
+        logger.fine("Stale requests expired: " + getExpired() + ", past reseller deadline: " + getPastDeadline()
+            + ", older than maximum age: " + getTooOld());
+    }
+}
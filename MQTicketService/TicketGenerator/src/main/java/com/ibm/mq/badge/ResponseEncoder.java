@@ -0,0 +1,50 @@
+package com.ibm.mq.badge;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSContext;
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+/**
+ * Creates the responses sent to the resellers, in the same format as the
+ * request being answered. A response to an <b>XML</b> request is the text
+ * <tt>Accepted</tt> or <tt>Rejected</tt>. A response to a binary request is
+ * a <tt>BytesMessage</tt> holding two bytes, the format version
+ * {@link RequestDecoder#BINARY_VERSION} followed by {@link #ACCEPTED} or
+ * {@link #REJECTED}.
+ * @version 1.0
+ * @see RequestDecoder
+ */
+public class ResponseEncoder {
+    /**
+     * Byte written to a binary response when the tickets were secured.
+     */
+    public static final byte ACCEPTED = 1;
+
+    /**
+     * Byte written to a binary response when the request was turned away.
+     */
+    public static final byte REJECTED = 0;
+
+    private ResponseEncoder() {}
+
+    /**
+     * Creates a response message.
+     * @param context The context to create the message from.
+     * @param outcome Text of the response, <tt>Accepted</tt> or
+     * <tt>Rejected</tt>.
+     * @param binary Whether the request being answered was binary.
+     * @return The response message.
+     * @throws JMSException Thrown when the body of a binary response could
+     * not be written.
+     */
+    public static Message create(JMSContext context, String outcome, boolean binary) throws JMSException {
+        if (!binary) {
+            return context.createTextMessage(outcome);
+        }
+        BytesMessage message = context.createBytesMessage();
+        message.writeByte(RequestDecoder.BINARY_VERSION);
+        message.writeByte("Accepted".equals(outcome) ? ACCEPTED : REJECTED);
+        return message;
+    }
+}
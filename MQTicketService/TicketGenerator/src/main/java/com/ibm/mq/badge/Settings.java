@@ -0,0 +1,208 @@
+package com.ibm.mq.badge;
+
+import java.util.logging.Logger;
+
+/**
+ * Provides the tuning settings for the ticket service. Each setting is
+ * read from an environment variable so that it can be passed to the
+ * container with {@code docker run -e}. When a variable is not set, or
+ * cannot be parsed, the default provided by the caller is used instead.
+ * The name of each setting is held as a constant on this class.
+ * @version 1.0
+ * @see CashierPool
+ */
+public class Settings {
+    private static final Logger logger = Logger.getLogger("com.ibm.mq.badge");
+
+    /**
+     * Number of {@link Cashier} workers started by the {@link Manager}.
+     */
+    public static final String CASHIER_WORKERS = "MQ_BADGE_CASHIER_WORKERS";
+
+    /**
+     * Whether each {@link Cashier} only receives the requests for its own
+     * range of events.
+     */
+    public static final String SHARD_BY_EVENT = "MQ_BADGE_SHARD_BY_EVENT";
+
+    /**
+     * How each {@link Cashier} takes requests off the queue, either
+     * <tt>poll</tt> or <tt>listener</tt>.
+     */
+    public static final String CASHIER_MODE = "MQ_BADGE_CASHIER_MODE";
+
+    /**
+     * Number of threads each {@link Cashier} processes requests on in
+     * listener mode.
+     */
+    public static final String LISTENER_WORKERS = "MQ_BADGE_LISTENER_WORKERS";
+
+    /**
+     * Number of requests that can wait for a free thread in listener mode.
+     */
+    public static final String LISTENER_QUEUE_DEPTH = "MQ_BADGE_LISTENER_QUEUE_DEPTH";
+
+    /**
+     * Largest number of requests each {@link Cashier} receives and commits
+     * in one transaction.
+     */
+    public static final String CASHIER_BATCH_SIZE = "MQ_BADGE_CASHIER_BATCH_SIZE";
+
+    /**
+     * Whether responses are sent by a {@link ConfirmationWriter} rather
+     * than by each {@link Cashier}.
+     */
+    public static final String CONFIRMATION_WRITER = "MQ_BADGE_CONFIRMATION_WRITER";
+
+    /**
+     * Number of responses that can wait for the {@link ConfirmationWriter}.
+     */
+    public static final String CONFIRMATION_QUEUE_DEPTH = "MQ_BADGE_CONFIRMATION_QUEUE_DEPTH";
+
+    /**
+     * Number of responses the {@link ConfirmationWriter} can have waiting
+     * for the queue manager at once.
+     */
+    public static final String CONFIRMATION_MAX_OUTSTANDING = "MQ_BADGE_CONFIRMATION_MAX_OUTSTANDING";
+
+    /**
+     * Age in milliseconds after which a request waiting on the queue is
+     * stale.
+     */
+    public static final String MAX_REQUEST_AGE_MILLIS = "MQ_BADGE_MAX_REQUEST_AGE_MILLIS";
+
+    /**
+     * Whether stale requests are dropped without a response rather than
+     * rejected.
+     */
+    public static final String DROP_STALE_REQUESTS = "MQ_BADGE_DROP_STALE_REQUESTS";
+
+    /**
+     * Number of request outcomes remembered to answer requests received more
+     * than once. 0 turns this off.
+     */
+    public static final String PROCESSED_REQUESTS_CACHE_SIZE = "MQ_BADGE_PROCESSED_REQUESTS_CACHE_SIZE";
+
+    /**
+     * Time in milliseconds an outcome is remembered for.
+     */
+    public static final String PROCESSED_REQUESTS_TTL_MILLIS = "MQ_BADGE_PROCESSED_REQUESTS_TTL_MILLIS";
+
+    /**
+     * Whether the cashiers, and each request in listener mode, run on
+     * virtual threads when the Java runtime provides them.
+     */
+    public static final String VIRTUAL_THREADS = "MQ_BADGE_VIRTUAL_THREADS";
+
+    /**
+     * Whether the {@link StorageManager} writes deductions to a
+     * {@link DeductionJournal}.
+     */
+    public static final String JOURNAL = "MQ_BADGE_JOURNAL";
+
+    /**
+     * Number of journal records after which the journal is folded into the
+     * data file.
+     */
+    public static final String JOURNAL_COMPACT_AFTER = "MQ_BADGE_JOURNAL_COMPACT_AFTER";
+
+    /**
+     * Whether journal records are written in batches by a background
+     * flusher and forced to disk before the sale is confirmed.
+     */
+    public static final String GROUP_COMMIT = "MQ_BADGE_GROUP_COMMIT";
+
+    /**
+     * Longest time in milliseconds a journal record waits for others to
+     * join its batch.
+     */
+    public static final String GROUP_COMMIT_MILLIS = "MQ_BADGE_GROUP_COMMIT_MILLIS";
+
+    /**
+     * Number of journal records that causes a batch to be written straight
+     * away.
+     */
+    public static final String GROUP_COMMIT_RECORDS = "MQ_BADGE_GROUP_COMMIT_RECORDS";
+
+    /**
+     * Whether the events are also kept in a memory-mapped
+     * {@link InventorySnapshot} that is loaded on start up instead of the
+     * data file.
+     */
+    public static final String BINARY_SNAPSHOT = "MQ_BADGE_BINARY_SNAPSHOT";
+
+    /**
+     * Whether journalled deductions for the same event that arrive together
+     * are combined into one journal record.
+     */
+    public static final String COMBINE_DEDUCTIONS = "MQ_BADGE_COMBINE_DEDUCTIONS";
+
+    /**
+     * Time in milliseconds the oldest journal record has waited to be
+     * written to disk at which the cashiers stop taking requests. 0 turns
+     * the check off.
+     */
+    public static final String PERSISTENCE_HIGH_WATERMARK_MILLIS = "MQ_BADGE_PERSISTENCE_HIGH_WATERMARK_MILLIS";
+
+    /**
+     * Time in milliseconds the oldest journal record has waited to be
+     * written to disk at which the cashiers start taking requests again.
+     */
+    public static final String PERSISTENCE_LOW_WATERMARK_MILLIS = "MQ_BADGE_PERSISTENCE_LOW_WATERMARK_MILLIS";
+
+    /**
+     * Number of threads the events in the data file are created on at
+     * start up.
+     */
+    public static final String CATALOGUE_LOAD_THREADS = "MQ_BADGE_CATALOGUE_LOAD_THREADS";
+
+    /**
+     * Whether adverts are published as pretty printed <b>XML</b>.
+     */
+    public static final String FORMATTED_ADVERTS = "MQ_BADGE_FORMATTED_ADVERTS";
+
+    private Settings() {}
+
+    /**
+     * Gets a string setting from the environment.
+     * @param name Name of the environment variable.
+     * @param defaultValue Value to use if the variable is not set.
+     * @return The value of the variable or the default value.
+     */
+    public static String getString(String name, String defaultValue) {
+        String value = System.getenv(name);
+        return (value != null && !value.isEmpty()) ? value : defaultValue;
+    }
+
+    /**
+     * Gets an integer setting from the environment.
+     * @param name Name of the environment variable.
+     * @param defaultValue Value to use if the variable is not set or is
+     * not a valid integer.
+     * @return The value of the variable or the default value.
+     */
+    public static int getInt(String name, int defaultValue) {
+        String value = getString(name, null);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value.trim());
+            }
+            catch (NumberFormatException e) {
+                logger.warning("Setting '" + name + "' is not a valid number, using default of " + defaultValue);
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Gets a boolean setting from the environment. Only <tt>true</tt>
+     * (ignoring case) is treated as true.
+     * @param name Name of the environment variable.
+     * @param defaultValue Value to use if the variable is not set.
+     * @return The value of the variable or the default value.
+     */
+    public static boolean getBoolean(String name, boolean defaultValue) {
+        String value = getString(name, null);
+        return (value != null) ? Boolean.parseBoolean(value.trim()) : defaultValue;
+    }
+}
@@ -3,15 +3,24 @@ package com.ibm.mq.badge;
 import com.ibm.mq.exceptions.*;
 import com.ibm.mq.events.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.*;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 /**
  * Responsible for writing data to a file in <b>JSON</b> and provides
  * a file to other classes to read data.
+ *
+ * <p>Data is never written over the file in place. It is written to a
+ * temporary file next to it, forced to disk and then moved over the old
+ * file in one step, so that a crash part way through a save leaves the
+ * previous data intact.
  * @author Benjamin Brunyee
  * @version 1.0
  */
@@ -25,6 +34,24 @@ public class StorageManager {
      */
     private String filename;
 
+    /**
+     * Added to the filename to give the temporary file data is written to
+     * before it is moved over the data file.
+     */
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Journal that ticket deductions are appended to between saves of the
+     * whole data file. When null, every deduction saves the whole file.
+     */
+    private DeductionJournal journal = null;
+
+    /**
+     * Binary snapshot of the events kept alongside the data file, can be
+     * null. Only kept up to date when there is a journal.
+     */
+    private InventorySnapshot snapshot = null;
+
     /**
      * Initialisation of the storage manager with a specific filename.
      * This constructor will also check the environment to see if the
@@ -38,6 +65,22 @@ public class StorageManager {
         checkEnv();
     }
 
+    /**
+     * Initialisation of the storage manager with a specific filename and
+     * the binary snapshot kept alongside it. The environment is checked as
+     * with {@link #StorageManager(String)}, except that a data file the
+     * snapshot still matches is not read through, as the events will be
+     * loaded from the snapshot.
+     * @param dataFilename The name of the file of which will have data
+     * read from and data saved to.
+     * @param snapshot The snapshot kept alongside the data file, can be null.
+     */
+    public StorageManager(String dataFilename, InventorySnapshot snapshot) {
+        this.filename = dataFilename;
+        this.snapshot = snapshot;
+        checkEnv();
+    }
+
     /**
      * Initialisation of the storage manager with the default filename.
      * This constructor will set a default filename of
@@ -69,25 +112,63 @@ public class StorageManager {
         return filename;
     }
 
+    public DeductionJournal getJournal() {
+        return journal;
+    }
+
+    public void setJournal(DeductionJournal journal) {
+        this.journal = journal;
+    }
+
+    public InventorySnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public void setSnapshot(InventorySnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Closes the journal and then the snapshot if they are set.
+     */
+    public void close() {
+        if (journal != null) {
+            journal.close();
+        }
+        if (snapshot != null) {
+            snapshot.close();
+        }
+    }
+
     /**
      * Saves <b>JSON</b> data to the file specified for the current storage manager.
+     * The data is written to a temporary file, forced to disk and then moved
+     * over the data file.
      * @param dataToSave Data to be writen to the file set for the storage manager.
      * @throws DataDidNotSaveException Thrown if the data could not be saved.
      */
     public synchronized void saveNewData(JSONObject dataToSave) throws DataDidNotSaveException {
         logger.info("Saving data");
-        PrintWriter pw;
         if (filename != null) {
+            Path target = Paths.get(filename);
+            Path temp = Paths.get(filename + TEMP_SUFFIX);
             try {
-                pw = new PrintWriter(filename);
-
-                // Writing the data to the file with indents
-                pw.write(dataToSave.toString(4));
-                pw.flush();
-                pw.close();
+                // Writing the data to the temporary file with indents
+                ByteBuffer buffer = ByteBuffer.wrap(dataToSave.toString(4).getBytes(StandardCharsets.UTF_8));
+                try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    channel.force(true);
+                }
+                moveIntoPlace(temp, target);
+                if (snapshot != null) {
+                    snapshot.matchDataFile(target);
+                }
             }
-            catch (FileNotFoundException e) {
-                String errorMessage = "File was not found: " + filename;
+            catch (IOException e) {
+                String errorMessage = "Could not save data to '" + filename + "'";
                 logger.warning(errorMessage);
                 e.printStackTrace();
                 throw new DataDidNotSaveException(errorMessage, e);
@@ -106,12 +187,82 @@ public class StorageManager {
     }
 
     /**
-     * Checks to see if the file specified for the storage manager exists.
-     * Will exit with {@code System.exit(1)} if the file doesn't exist.
+     * Moves a fully written temporary file over the data file. The move is
+     * atomic where the file system allows it, and the directory is forced
+     * afterwards so the move itself survives a crash.
+     * @param temp The temporary file holding the new data.
+     * @param target The data file to replace.
+     * @throws IOException Thrown if the file could not be moved.
+     */
+    private void moveIntoPlace(Path temp, Path target) throws IOException {
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            logger.fine("Atomic move not supported for '" + filename + "', replacing file instead");
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Path directory = target.toAbsolutePath().getParent();
+        if (directory != null) {
+            // Not every platform allows a directory to be opened, so this is best effort
+            try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+                channel.force(true);
+            }
+            catch (IOException e) {
+                logger.finest("Could not force directory '" + directory + "' to disk");
+            }
+        }
+    }
+
+    /**
+     * Checks to see if the file specified for the storage manager exists
+     * and is whole. Will exit with {@code System.exit(1)} if the file doesn't
+     * exist or can not be read.
      */
     private void checkEnv() {
         if (!new File(filename).exists()) {
             logger.log(Level.SEVERE, "File: '" + filename + "' does not exist", new FileNotFoundException("File Not Found"));
         }
+        else {
+            verify();
+        }
+    }
+
+    /**
+     * Verifies the data file after a restart. A temporary file left behind
+     * by a save that was cut short is removed, as the data file still holds
+     * the data from before that save. The data file must then read as a
+     * whole <b>JSON</b> object. Will exit with {@code System.exit(1)} if it
+     * does not.
+     *
+     * <p>The file is read through a {@link CatalogueReader}, which only
+     * checks that each element of an array is whole rather than parsing
+     * it, so the file is never held in memory at once. The elements are
+     * parsed when the events are loaded. When the snapshot set is whole,
+     * checked in full as it would be when loaded, and still matches the
+     * data file, the data file is not read at all. Should the snapshot
+     * still fail to load, the events are loaded from the data file, which
+     * exits if it can not be read.
+     */
+    private void verify() {
+        Path temp = Paths.get(filename + TEMP_SUFFIX);
+        try {
+            if (Files.deleteIfExists(temp)) {
+                logger.warning("Removed '" + temp + "' left by a save that did not finish");
+            }
+            if (snapshot != null && snapshot.matches(Paths.get(filename))) {
+                logger.finer("Data in '" + filename + "' matches snapshot '" + snapshot.getFilename() + " in full, not reading it through");
+                return;
+            }
+            try (CatalogueReader reader = new CatalogueReader(filename, null)) {
+                if (reader.read(element -> {}) == null) {
+                    throw new JSONException("'" + filename + "' is empty");
+                }
+            }
+            logger.finer("Verified data in '" + filename + "'");
+        }
+        catch (IOException | JSONException e) {
+            logger.log(Level.SEVERE, "Data in '" + filename + "' could not be verified", e);
+        }
     }
 }
\ No newline at end of file
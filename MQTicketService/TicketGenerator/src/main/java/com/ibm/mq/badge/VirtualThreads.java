@@ -0,0 +1,87 @@
+package com.ibm.mq.badge;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+/**
+ * Runs work on virtual threads when the Java runtime provides them, and on
+ * platform threads when it does not. The service is built for Java 8, so
+ * the virtual thread methods added in Java 21 are looked up by reflection
+ * rather than called directly.
+ *
+ * <p>A virtual thread that blocks on an MQ call, or waits for the
+ * {@link DeductionJournal} to reach the disk, gives up its carrier thread,
+ * so one can be used for every request in flight.
+ * @version 1.0
+ * @see Cashier
+ * @see Settings#VIRTUAL_THREADS
+ */
+public final class VirtualThreads {
+    private static final Logger logger = Logger.getLogger("com.ibm.mq.badge");
+
+    private static final Method NEW_EXECUTOR = lookup(Executors.class, "newVirtualThreadPerTaskExecutor");
+    private static final Method START_THREAD = lookup(Thread.class, "startVirtualThread", Runnable.class);
+
+    private VirtualThreads() {}
+
+    /**
+     * Checks whether the Java runtime provides virtual threads.
+     * @return True if virtual threads can be created.
+     */
+    public static boolean isAvailable() {
+        return NEW_EXECUTOR != null && START_THREAD != null;
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for each task.
+     * Without virtual threads, a cached pool of platform threads is used.
+     * @return An <tt>ExecutorService</tt> for running tasks.
+     */
+    public static ExecutorService newPerTaskExecutor() {
+        if (isAvailable()) {
+            try {
+                return (ExecutorService) NEW_EXECUTOR.invoke(null);
+            }
+            catch (IllegalAccessException | InvocationTargetException e) {
+                logger.warning("Could not create virtual thread executor, using platform threads");
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Starts a task on a new thread, which is virtual if the runtime
+     * provides virtual threads.
+     * @param name Name given to the thread.
+     * @param task The task to run.
+     * @param virtual Whether a virtual thread should be used when available.
+     * @return The thread that was started.
+     */
+    public static Thread start(String name, Runnable task, boolean virtual) {
+        if (virtual && isAvailable()) {
+            try {
+                Thread thread = (Thread) START_THREAD.invoke(null, task);
+                thread.setName(name);
+                return thread;
+            }
+            catch (IllegalAccessException | InvocationTargetException e) {
+                logger.warning("Could not start virtual thread for '" + name + "', using a platform thread");
+            }
+        }
+        Thread thread = new Thread(task, name);
+        thread.start();
+        return thread;
+    }
+
+    private static Method lookup(Class<?> owner, String name, Class<?>... parameterTypes) {
+        try {
+            return owner.getMethod(name, parameterTypes);
+        }
+        catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -2,11 +2,7 @@ package com.ibm.mq.events;
 
 import java.util.logging.Logger;
 
-import java.io.StringWriter;
-
-import jakarta.xml.bind.JAXBContext;
 import jakarta.xml.bind.JAXBException;
-import jakarta.xml.bind.Marshaller;
 
 /**
  * NOT BEING USED
@@ -71,14 +67,6 @@ public class BookableEvent implements Advertisable {
 
     public String toXML() throws JAXBException
 	{
-        StringWriter writer = new StringWriter();
-        JAXBContext jaxbContext = JAXBContext.newInstance(this.getClass());
-        Marshaller jaxbMarshaller = jaxbContext.createMarshaller();
-
-        // output pretty printed
-        jaxbMarshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-
-        jaxbMarshaller.marshal(this, writer);
-        return writer.toString();
+        return XmlSerializer.toXML(this);
 	}
 }
\ No newline at end of file
@@ -1,12 +1,8 @@
 package com.ibm.mq.events;
 
-import java.io.StringWriter;
-
 import jakarta.xml.bind.annotation.XmlElement;
 import jakarta.xml.bind.annotation.XmlRootElement;
-import jakarta.xml.bind.JAXBContext;
 import jakarta.xml.bind.JAXBException;
-import jakarta.xml.bind.Marshaller;
 
 /**
  * The class that implements {@link Advertisable} and is used in
@@ -83,7 +79,8 @@ public class Event implements Advertisable {
 
     /**
      * Writes this class into a <b>XML</b> string that is ready
-     * to be published or sent to a queue or topic.
+     * to be published or sent to a queue or topic. Written through the
+     * {@link XmlSerializer} so the <tt>JAXBContext</tt> is only created once.
      * @return A String of <b>XML</b> with
      * variables as <b>XML</b> elements.
      * @throws JAXBException Thrown when there was an error in
@@ -92,14 +89,6 @@ public class Event implements Advertisable {
     @Override
     public String toXML() throws JAXBException
 	{
-        StringWriter writer = new StringWriter();
-        JAXBContext jaxbContext = JAXBContext.newInstance(this.getClass());
-        Marshaller jaxbMarshaller = jaxbContext.createMarshaller();
-
-        // output pretty printed
-        jaxbMarshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-
-        jaxbMarshaller.marshal(this, writer);
-        return writer.toString();
+        return XmlSerializer.toXML(this);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,64 @@
+package com.ibm.mq.events;
+
+/**
+ * A request from a reseller to buy a number of tickets for an
+ * {@link Event}. Holds only the fields the cashier needs to deal with
+ * the request.
+ * @version 1.0
+ * @see com.ibm.mq.badge.RequestDecoder
+ */
+public class TicketRequest {
+    private int eventID;
+    private int numberRequested;
+    private String correlationID = null;
+    private String resellerID = null;
+    private long deadline = 0;
+
+    /**
+     * Creates a request for a number of tickets for an event.
+     * @param eventID ID of the event being requested.
+     * @param numberRequested Number of tickets requested.
+     */
+    public TicketRequest(int eventID, int numberRequested) {
+        this.eventID = eventID;
+        this.numberRequested = numberRequested;
+    }
+
+    public int getEventID() {
+        return eventID;
+    }
+
+    public int getNumberRequested() {
+        return numberRequested;
+    }
+
+    public String getCorrelationID() {
+        return correlationID;
+    }
+
+    public void setCorrelationID(String correlationID) {
+        this.correlationID = correlationID;
+    }
+
+    public String getResellerID() {
+        return resellerID;
+    }
+
+    public void setResellerID(String resellerID) {
+        this.resellerID = resellerID;
+    }
+
+    /**
+     * Gets the time after which the reseller is no longer waiting for the
+     * response.
+     * @return Milliseconds since the epoch, or 0 if the request did not
+     * carry a deadline.
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+}
@@ -0,0 +1,106 @@
+package com.ibm.mq.events;
+
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jakarta.xml.bind.JAXBContext;
+import jakarta.xml.bind.JAXBException;
+import jakarta.xml.bind.Marshaller;
+
+/**
+ * Turns {@link Advertisable} classes into <b>XML</b>. Creating a
+ * <tt>JAXBContext</tt> is slow, so one is created the first time each class
+ * is written and then kept. A <tt>Marshaller</tt> can not be shared between
+ * threads, so each thread keeps its own for each class it writes.
+ *
+ * <p>Output is pretty printed by default so that adverts are easy to read.
+ * This can be turned off with {@link #setFormattedOutput(boolean)} when
+ * adverts are published at a high rate.
+ * @version 1.0
+ * @see Advertisable
+ * @see Event
+ */
+public class XmlSerializer {
+    /**
+     * One context for each class written, created when first needed.
+     */
+    private static final ConcurrentHashMap<Class<?>, JAXBContext> contexts = new ConcurrentHashMap<>();
+
+    /**
+     * The marshallers created by each thread, one for each class written.
+     */
+    private static final ThreadLocal<Map<Class<?>, Marshaller>> marshallers =
+        ThreadLocal.withInitial(HashMap::new);
+
+    /**
+     * Whether output is pretty printed by {@link #toXML(Advertisable)}.
+     */
+    private static volatile boolean formattedOutput = true;
+
+    private XmlSerializer() {}
+
+    public static boolean isFormattedOutput() {
+        return formattedOutput;
+    }
+
+    public static void setFormattedOutput(boolean formattedOutput) {
+        XmlSerializer.formattedOutput = formattedOutput;
+    }
+
+    /**
+     * Writes an {@link Advertisable} as <b>XML</b>, pretty printed if
+     * formatted output is turned on.
+     * @param advert The object to write.
+     * @return A string of <b>XML</b>.
+     * @throws JAXBException Thrown when the object could not be written.
+     */
+    public static String toXML(Advertisable advert) throws JAXBException {
+        return toXML(advert, formattedOutput);
+    }
+
+    /**
+     * Writes an {@link Advertisable} as <b>XML</b>.
+     * @param advert The object to write.
+     * @param formatted Whether to pretty print the output.
+     * @return A string of <b>XML</b>.
+     * @throws JAXBException Thrown when the object could not be written.
+     */
+    public static String toXML(Advertisable advert, boolean formatted) throws JAXBException {
+        Marshaller marshaller = getMarshaller(advert.getClass());
+        marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, formatted);
+        StringWriter writer = new StringWriter();
+        marshaller.marshal(advert, writer);
+        return writer.toString();
+    }
+
+    /**
+     * Gets the marshaller for a class belonging to the current thread,
+     * creating it if this thread has not written the class before.
+     */
+    private static Marshaller getMarshaller(Class<?> type) throws JAXBException {
+        Map<Class<?>, Marshaller> threadMarshallers = marshallers.get();
+        Marshaller marshaller = threadMarshallers.get(type);
+        if (marshaller == null) {
+            marshaller = getContext(type).createMarshaller();
+            threadMarshallers.put(type, marshaller);
+        }
+        return marshaller;
+    }
+
+    /**
+     * Gets the context for a class, creating it the first time it is needed.
+     */
+    private static JAXBContext getContext(Class<?> type) throws JAXBException {
+        JAXBContext context = contexts.get(type);
+        if (context == null) {
+            JAXBContext created = JAXBContext.newInstance(type);
+            context = contexts.putIfAbsent(type, created);
+            if (context == null) {
+                context = created;
+            }
+        }
+        return context;
+    }
+}
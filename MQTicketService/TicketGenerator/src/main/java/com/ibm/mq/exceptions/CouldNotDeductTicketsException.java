@@ -15,4 +15,12 @@ public class CouldNotDeductTicketsException extends Exception {
     public CouldNotDeductTicketsException(String message) {
         super(message);
     }
+
+    /**
+     * Used when the tickets could have been deducted but the change could
+     * not be saved. The cause is set, as trying again may succeed.
+     */
+    public CouldNotDeductTicketsException(String message, Throwable err) {
+        super(message, err);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,19 @@
+package com.ibm.mq.exceptions;
+
+/**
+ * Thrown when a ticket request received by the cashier could not be
+ * decoded, such as when a field is missing or is not a number.
+ * @version 1.0
+ * @see com.ibm.mq.badge.RequestDecoder
+ */
+public class MalformedRequestException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public MalformedRequestException(String message) {
+        super(message);
+    }
+
+    public MalformedRequestException(String message, Throwable err) {
+        super(message, err);
+    }
+}
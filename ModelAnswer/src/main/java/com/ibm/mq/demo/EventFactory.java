@@ -26,16 +26,31 @@ import jakarta.xml.bind.JAXBContext;
 import jakarta.xml.bind.JAXBException;
 import jakarta.xml.bind.Unmarshaller;
 
+/**
+  An <code>EventFactory</code> decodes the Event adverts published on the
+  newTickets topic. The JAXBContext is created once, the first time it is
+  needed, and each thread keeps its own Unmarshaller, so decoding an advert
+  does not pay to set JAXB up again.
+ */
 public class EventFactory
 {
   private static final Logger logger = Logger.getLogger("com.ibm.mq.demo");
 
+  private static volatile JAXBContext jaxbContext = null;
+
+  private static final ThreadLocal<Unmarshaller> unmarshallers = new ThreadLocal<Unmarshaller>();
+
+  /**
+   * Decodes the Event held in a message received from the topic. Callers
+   * should decode each message once and pass the Event on.
+   *
+   * @param message the message received from the subscription
+   * @return Event the decoded Event, or null if it could not be decoded
+   */
   public static Event newEventFromMessage(Message message) {
     Event event = null;
     try {
-      JAXBContext jaxbContext = JAXBContext.newInstance(Event.class);
-      Unmarshaller jaxbUnmarshaller = jaxbContext.createUnmarshaller();
-      event = (Event) jaxbUnmarshaller.unmarshal(new StringReader(message.getBody(String.class)));
+      event = (Event) getUnmarshaller().unmarshal(new StringReader(message.getBody(String.class)));
     }
     catch (JAXBException e) {
       logger.warning("XML Errors detected parsing Event Message");
@@ -49,4 +64,28 @@ public class EventFactory
     return event;
   }
 
+  /**
+   * Gets the Unmarshaller for the current thread, creating the JAXBContext
+   * and the Unmarshaller the first time they are needed.
+   *
+   * @return Unmarshaller for Event
+   */
+  private static Unmarshaller getUnmarshaller() throws JAXBException {
+    Unmarshaller unmarshaller = unmarshallers.get();
+    if (unmarshaller == null) {
+      JAXBContext context = jaxbContext;
+      if (context == null) {
+        synchronized (EventFactory.class) {
+          if (jaxbContext == null) {
+            jaxbContext = JAXBContext.newInstance(Event.class);
+          }
+          context = jaxbContext;
+        }
+      }
+      unmarshaller = context.createUnmarshaller();
+      unmarshallers.set(unmarshaller);
+    }
+    return unmarshaller;
+  }
+
 }
@@ -0,0 +1,193 @@
+/*
+* (c) Copyright IBM Corporation 2018
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.ibm.mq.demo;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.*;
+
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.Session;
+
+/**
+  A <code>ReplyCorrelator</code> matches the responses on the confirmation
+  queue to the requests waiting for them, without blocking the thread that
+  sent the request.
+
+  Each request registers a CompletableFuture under its correlation id
+  before it is sent. One MessageListener on the confirmation queue completes
+  the future for each response as it arrives, and a scheduler completes the
+  future with false if no response arrives in time. This lets a reseller
+  keep many purchases in flight at once.
+ */
+public class ReplyCorrelator implements MessageListener
+{
+  private static final Logger logger = Logger.getLogger("com.ibm.mq.demo");
+
+  private static String CONFIRMATION_QUEUE = "confirmation";
+
+  private final ConcurrentHashMap<String, CompletableFuture<Boolean>> pending =
+      new ConcurrentHashMap<String, CompletableFuture<Boolean>>();
+
+  private final ScheduledThreadPoolExecutor timeouts;
+
+  private final long timeoutMillis;
+
+  private MessageConsumer consumer = null;
+
+  /**
+   * Constructs a ReplyCorrelator listening on the confirmation queue for
+   * responses whose correlation id starts with the prefix given.
+   *
+   * @param session a session only used by this correlator, as the listener
+   * takes over delivery for the session
+   * @param correlationPrefix start of every correlation id to listen for
+   * @param timeoutMillis how long to wait for each response
+   */
+  public ReplyCorrelator(Session session, String correlationPrefix, long timeoutMillis) {
+    this.timeoutMillis = timeoutMillis;
+    this.timeouts = new ScheduledThreadPoolExecutor(1, r -> {
+      Thread thread = new Thread(r, "ReplyTimeouts");
+      thread.setDaemon(true);
+      return thread;
+    });
+    // A timeout cancelled because its response arrived is dropped from the
+    // queue straight away, rather than waiting there until it is due
+    this.timeouts.setRemoveOnCancelPolicy(true);
+    try {
+      Destination replyQueue = session.createQueue(CONFIRMATION_QUEUE);
+      consumer = session.createConsumer(replyQueue, "JMSCorrelationID LIKE '" + correlationPrefix + "%'");
+      consumer.setMessageListener(this);
+      logger.fine("Listening for responses on " + CONFIRMATION_QUEUE);
+    }
+    catch (JMSException e) {
+      logger.warning("Unable to listen for responses on the confirmation queue");
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Verifies that the listener was successfully created
+   *
+   * @param None
+   * @return boolean indicating whether the listener is in place
+   */
+  public boolean isGood() {
+    return (consumer != null);
+  }
+
+  /**
+   * Registers a request that is about to be sent. Must be called before
+   * the request is sent, so that a quick response is not missed.
+   *
+   * @param correlationID the correlation id the request will be sent with
+   * @return CompletableFuture completed with whether the tickets were
+   * secured, or with false if no response arrives in time
+   */
+  public CompletableFuture<Boolean> register(String correlationID) {
+    CompletableFuture<Boolean> future = new CompletableFuture<Boolean>();
+    pending.put(correlationID, future);
+    ScheduledFuture<?> timeout = timeouts.schedule(() -> {
+      CompletableFuture<Boolean> expired = pending.remove(correlationID);
+      if (expired != null) {
+        logger.info("No response for request " + correlationID + " within " + timeoutMillis + "ms");
+        expired.complete(false);
+      }
+    }, timeoutMillis, TimeUnit.MILLISECONDS);
+    future.whenComplete((accepted, e) -> timeout.cancel(false));
+    return future;
+  }
+
+  /**
+   * Forgets a request that could not be sent.
+   *
+   * @param correlationID the correlation id of the request
+   * @return None
+   */
+  public void cancel(String correlationID) {
+    CompletableFuture<Boolean> future = pending.remove(correlationID);
+    if (future != null) {
+      future.complete(false);
+    }
+  }
+
+  /**
+   * Number of requests still waiting for a response
+   *
+   * @param None
+   * @return int the number of requests in flight
+   */
+  public int inFlight() {
+    return pending.size();
+  }
+
+  /**
+   * Called by the session for each response on the confirmation queue.
+   * Completes the future of the request the response belongs to.
+   *
+   * @param message the response received
+   * @return None
+   */
+  @Override
+  public void onMessage(Message message) {
+    try {
+      String correlationID = message.getJMSCorrelationID();
+      CompletableFuture<Boolean> future = (correlationID != null) ? pending.remove(correlationID) : null;
+      if (future != null) {
+        TicketRequester.logLatency(correlationID);
+        future.complete(TicketRequester.isAccepted(message));
+      }
+      else {
+        logger.fine("Discarding late response for request " + correlationID);
+      }
+    }
+    catch (JMSException e) {
+      logger.warning("Error reading the response from Event Booking System");
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Stops listening for responses. Requests still waiting are completed
+   * with false.
+   *
+   * @param None
+   * @return None
+   */
+  public void close() {
+    try {
+      if (consumer != null) {
+        consumer.close();
+      }
+    }
+    catch (JMSException e) {
+      logger.warning("Error closing the confirmation listener");
+      e.printStackTrace();
+    }
+    timeouts.shutdownNow();
+    for (String correlationID : pending.keySet()) {
+      cancel(correlationID);
+    }
+  }
+}
@@ -18,6 +18,10 @@ package com.ibm.mq.demo;
 
 import java.util.logging.*;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.jms.Message;
 import javax.jms.Session;
@@ -29,6 +33,9 @@ public class Reseller
 
   private static String DESTINATION_NAME = "newTickets";
 
+  // Set to true to handle each reply on its own virtual thread
+  private static String VIRTUAL_THREADS = "MQ_BADGE_VIRTUAL_THREADS";
+
   /**
    * Main method
    *
@@ -45,7 +52,10 @@ public class Reseller
     if (session != null) {
       // Challenge : Subscribes to topic
       TicketSubscriber ticketSubscriber = new TicketSubscriber(session, DESTINATION_NAME);
-      TicketRequester ticketRequester = new TicketRequester(session);
+      // Replies are delivered on their own session, so the loop below can
+      // carry on taking adverts while earlier requests are in flight
+      TicketRequester ticketRequester = new TicketRequester(session, SessionBuilder.createSession());
+      Executor replyHandlers = replyExecutor();
       if (ticketSubscriber.isGood()) {
         logger.fine("Entering wait loop for event tickets");
         while(true) {
@@ -59,22 +69,31 @@ public class Reseller
               final String key = "org.glassfish.jaxb.runtime.v2.bytecode.ClassTailor.noOptimize";
               System.setProperty(key, "true");
 
+              // Decode the advert once, it is used to decide and to build the request
+              Event event = EventFactory.newEventFromMessage(message);
+              if (event == null) {
+                logger.warning("Could not decode the advert, skipping it");
+                continue;
+              }
+
               // Challenge : Processes a publication
-              int numToReserve = howMany(message);
+              int numToReserve = howMany(event);
 
               logger.fine("Sending request to purchase tickets over peer to peer");
 
               // Challenge : Receiving a publication triggers a put
               // then requests to purchase a batch of tickets
-              String correlationID = ticketRequester.put(message, numToReserve);
-              if (correlationID != null) {
-                logger.fine("Request has been sent, waiting response from Event Booking System");
-                // Challenge : Our reseller application does a get from this queue
-                if (ticketRequester.get(correlationID)) {
-                  logger.info("Tickets secured!");
-                } else {
-                  logger.info("No tickets reserved!");
-                }
+              CompletableFuture<Boolean> reply = ticketRequester.request(event, numToReserve);
+              if (reply != null) {
+                logger.fine("Request has been sent, the response from Event Booking System will be handled when it arrives");
+                // Challenge : Our reseller application gets the response from this queue
+                reply.thenAcceptAsync(secured -> {
+                  if (secured) {
+                    logger.info("Tickets secured!");
+                  } else {
+                    logger.info("No tickets reserved!");
+                  }
+                }, replyHandlers);
               }
             }
           }
@@ -86,6 +105,10 @@ public class Reseller
         }
       }
 
+      ticketRequester.close();
+      if (replyHandlers instanceof ExecutorService) {
+        ((ExecutorService) replyHandlers).shutdown();
+      }
       SessionBuilder.close(session);
     } else {
       logger.severe("Was unable to connect to MQ");
@@ -118,18 +141,42 @@ public class Reseller
   }
 
   /**
-   * Processes the publication, by extracting the details from the
-   * received Message and determining how many tickets to request.
+   * Creates the executor that replies are handled on. When
+   * MQ_BADGE_VIRTUAL_THREADS is true and the Java runtime has virtual
+   * threads, each reply gets its own virtual thread. The reseller is built
+   * for Java 8, so the Java 21 method is looked up by reflection. Otherwise
+   * replies are handled on the thread that delivers them.
+   *
+   * @param None
+   * @return Executor to handle replies on
+   */
+  private static Executor replyExecutor() {
+    if (Boolean.parseBoolean(System.getenv(VIRTUAL_THREADS))) {
+      try {
+        Executor executor = (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        logger.fine("Handling replies on virtual threads");
+        return executor;
+      }
+      catch (ReflectiveOperationException e) {
+        logger.warning("Virtual threads are not available, handling replies on the delivery thread");
+      }
+    }
+    return Runnable::run;
+  }
+
+  /**
+   * Processes the publication, by taking the details from the
+   * Event decoded from the received Message and determining how many
+   * tickets to request.
    *
    * Challenge : Processes a publication
    *
-   * @param Message the Message that was received by the subcription
+   * @param Event the Event decoded from the publication
    * @return int the quantity of tickets to be requested.
    */
-  private static int howMany(Message message) {
+  private static int howMany(Event event) {
     int iWant = -1;
     Scanner in = new Scanner(System.in);
-    Event event = EventFactory.newEventFromMessage(message);
 
     // getTitle
     // getTime
@@ -47,6 +47,10 @@ public class SessionBuilder
 
   private static Boolean TRANSACTED = false;
 
+  // The connection the sessions are created on, kept so that more
+  // sessions can be added to it
+  private static Connection connection = null;
+
   /**
    * Uses the JMS Client classes to establish a connection to the Queue Manager
    * running on the MQ Server
@@ -97,7 +101,7 @@ public class SessionBuilder
 
       // Create JMS objects
       logger.finest("Creating Connection Session");
-      Connection connection = cf.createConnection();
+      connection = cf.createConnection();
       session = connection.createSession(TRANSACTED, Session.AUTO_ACKNOWLEDGE);
       connection.start();
 
@@ -112,6 +116,35 @@ public class SessionBuilder
   }
 
 
+  /**
+   * Creates another session on the connection made by connect. A session
+   * can only be used by one thread at a time, so a session that delivers
+   * messages to a MessageListener needs to be separate from the session
+   * used by the main thread.
+   *
+   * @param None
+   * @return Session on the existing connection, or null if there is no
+   * connection or the session could not be created
+   */
+
+  public static Session createSession() {
+    Session session = null;
+    if (connection == null) {
+      logger.warning("No connection to create a session on, call connect first");
+      return session;
+    }
+    try {
+      session = connection.createSession(TRANSACTED, Session.AUTO_ACKNOWLEDGE);
+      logger.finest("Created additional JMS session");
+    }
+    catch (JMSException jmsex) {
+      logger.warning("Unable to create additional JMS Session");
+      jmsex.printStackTrace();
+    }
+    return session;
+  }
+
+
   /**
    * Closes the session
    *
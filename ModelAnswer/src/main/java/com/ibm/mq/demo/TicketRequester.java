@@ -17,8 +17,14 @@
 package com.ibm.mq.demo;
 
 import java.util.logging.*;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.jms.BytesMessage;
 import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.Message;
@@ -26,13 +32,28 @@ import javax.jms.MessageConsumer;
 import javax.jms.MessageProducer;
 import javax.jms.Queue;
 import javax.jms.Session;
-import javax.jms.TextMessage;
 
 import jakarta.xml.bind.JAXBException;
 
 /**
   A <code>TicketRequester</code> uses peer to peer messaging to put and get
   messages to and from a queue.
+
+  The producer for the purchase queue and the consumer for the confirmation
+  queue are created once and kept for the life of the requester, rather than
+  once per request. Every correlation id starts with an id belonging to this
+  requester, so the one consumer only sees replies meant for it.
+
+  When constructed with a ReplyCorrelator, replies are not read by the
+  requester. Instead each request returns a CompletableFuture that the
+  correlator completes when the reply arrives, so requests do not have to
+  wait for each other.
+
+  When MQ_BADGE_BINARY_REQUESTS is true, requests are sent in the compact
+  binary format instead of XML. The body is a BytesMessage holding a
+  version byte, the event id, the number of tickets, the id of this
+  requester and the deadline for the reply, and the Event Booking System
+  replies with a BytesMessage holding a version byte and an accepted byte.
  */
 public class TicketRequester
 {
@@ -44,15 +65,75 @@ public class TicketRequester
     private static String PURCHASE_QUEUE = "purchase";
     private static String CONFIRMATION_QUEUE = "confirmation";
     private static String ACCEPTED = "Accepted";
+    private static String EVENT_ID_PROPERTY = "eventID";
+    private static String NUMBER_REQUESTED_PROPERTY = "numberRequested";
+    private static String DEADLINE_PROPERTY = "replyDeadline";
+    private static long RESPONSE_TIMEOUT = 30000;
+    private static String BINARY_REQUESTS = "MQ_BADGE_BINARY_REQUESTS";
+    private static final byte BINARY_VERSION = 1;
+    private static final byte BINARY_ACCEPTED = 1;
+
+    // Whether requests are sent in the binary format rather than XML
+    private static final boolean binary = Boolean.parseBoolean(System.getenv(BINARY_REQUESTS));
+
+    // Kept open for the life of the requester
+    private static MessageProducer producer = null;
+    private static MessageConsumer replyConsumer = null;
+
+    // Start of every correlation id sent by this requester
+    private static final String REQUESTER_ID = UUID.randomUUID().toString();
+    private static final AtomicLong requestCount = new AtomicLong();
+
+    // When each request waiting for a reply was sent, to time the round trip
+    private static final Map<String, Long> sentAt = new ConcurrentHashMap<String, Long>();
+
+    // Completes requests as replies arrive, null when replies are read by get
+    private static ReplyCorrelator correlator = null;
 
     /**
      * Constructs a TicketRequester with the Session representing
-     * the connection to MQ.
+     * the connection to MQ, and opens the producer and reply consumer
+     * that every request will use.
      *
      * @param Session the estalished connection to MQ
      */
     public TicketRequester(Session s) {
+      this(s, null);
+    }
+
+    /**
+     * Constructs a TicketRequester with the Session representing
+     * the connection to MQ and a separate Session for a ReplyCorrelator
+     * that will complete requests as their replies arrive.
+     *
+     * @param Session the estalished connection to MQ
+     * @param Session the session the replies will be delivered on, or
+     * null to read replies with get
+     */
+    public TicketRequester(Session s, Session replySession) {
       session = s;
+      try {
+        Queue requestQueue = session.createQueue(PURCHASE_QUEUE);
+        producer = session.createProducer(requestQueue);
+        // Nobody waits for a reply after the timeout, so the request is not
+        // worth processing either. The expiry of a message is set from the
+        // producer's time to live when it is sent.
+        producer.setTimeToLive(RESPONSE_TIMEOUT);
+
+        if (replySession != null) {
+          correlator = new ReplyCorrelator(replySession, REQUESTER_ID, RESPONSE_TIMEOUT);
+          logger.fine("Opened producer and reply listener for requester " + REQUESTER_ID);
+        }
+        else {
+          Destination replyQueue = session.createQueue(CONFIRMATION_QUEUE);
+          replyConsumer = session.createConsumer(replyQueue, "JMSCorrelationID LIKE '" + REQUESTER_ID + "%'");
+          logger.fine("Opened producer and reply consumer for requester " + REQUESTER_ID);
+        }
+      }
+      catch (JMSException e) {
+        logger.warning("Error opening the purchase and confirmation queues");
+        e.printStackTrace();
+      }
     }
 
     /**
@@ -69,42 +150,126 @@ public class TicketRequester
      */
     public static String put(Message message, int numTickets)
     {
-      String correlationID = null;
+      return put(EventFactory.newEventFromMessage(message), numTickets);
+    }
+
+    /**
+     * puts a message on the purchase queue, by merging the
+     * number of tickets desired with the Event already decoded from
+     * the subscription into a new Request.
+     *
+     * @param Event the Event decoded from the message that was recieved
+     * @param int the number of tickets to request
+     * @return String the correlation id of the request, or null if it
+     * could not be sent
+     */
+    public static String put(Event event, int numTickets)
+    {
+      String correlationID = nextCorrelationID();
+      return send(event, numTickets, correlationID) ? correlationID : null;
+    }
+
+    /**
+     * puts a message on the purchase queue without waiting for the
+     * reply. The request is registered with the ReplyCorrelator before it
+     * is sent, so the reply cannot arrive before anything is waiting for it.
+     * Without a ReplyCorrelator the reply is read with get before this
+     * method returns.
+     *
+     * @param Event the Event decoded from the message that was recieved
+     * @param int the number of tickets to request
+     * @return CompletableFuture completed with whether the tickets were
+     * secured, or null if the request could not be sent
+     */
+    public CompletableFuture<Boolean> request(Event event, int numTickets)
+    {
+      if (correlator == null || !correlator.isGood()) {
+        String correlationID = put(event, numTickets);
+        return (correlationID == null) ? null : CompletableFuture.completedFuture(get(correlationID));
+      }
+      String correlationID = nextCorrelationID();
+      CompletableFuture<Boolean> reply = correlator.register(correlationID);
+      if (!send(event, numTickets, correlationID)) {
+        correlator.cancel(correlationID);
+        return null;
+      }
+      return reply.whenComplete((accepted, e) -> sentAt.remove(correlationID));
+    }
+
+    private static String nextCorrelationID() {
+      return REQUESTER_ID + "-" + requestCount.incrementAndGet();
+    }
+
+    private static boolean send(Event event, int numTickets, String correlationID)
+    {
+      if (event == null) {
+        logger.warning("No event to request tickets for");
+        return false;
+      }
+      if (producer == null) {
+        logger.warning("No producer open for the purchase queue");
+        return false;
+      }
 
       try {
         logger.finest("Building message to request tickets");
-        Event event = EventFactory.newEventFromMessage(message);
-        RequestTickets request = new RequestTickets(event, numTickets);
+        long start = System.nanoTime();
+        long deadline = System.currentTimeMillis() + RESPONSE_TIMEOUT;
 
-        TextMessage requestMessage = session.createTextMessage(request.toXML());
-        correlationID = UUID.randomUUID().toString();
+        Message requestMessage = binary ? createBinaryRequest(event, numTickets, deadline)
+            : session.createTextMessage(new RequestTickets(event, numTickets).toXML());
         requestMessage.setJMSCorrelationID(correlationID);
-        requestMessage.setJMSExpiration(900000);
+        // Lets the Event Booking System route the request without reading
+        // the body. A binary body already holds the rest, so only an XML
+        // request carries it as properties as well
+        requestMessage.setIntProperty(EVENT_ID_PROPERTY, event.getEventID());
+        if (!binary) {
+          requestMessage.setIntProperty(NUMBER_REQUESTED_PROPERTY, numTickets);
+          requestMessage.setLongProperty(DEADLINE_PROPERTY, deadline);
+        }
 
         logger.finest("Sending request to purchase tickets");
-        Queue requestQueue = session.createQueue(PURCHASE_QUEUE);
-        MessageProducer producer = session.createProducer(requestQueue);
-
         producer.send(requestMessage);
-        logger.finest("Sent request for tickets");
+        sentAt.put(correlationID, System.nanoTime());
+        logger.finest("Sent request for tickets in " + micros(System.nanoTime() - start) + "us");
+        return true;
        }
        catch (JAXBException e) {
-         correlationID = null;
          logger.warning("XML Errors detected");
          e.printStackTrace();
        }
        catch (JMSException e)
        {
-         correlationID = null;
          e.printStackTrace();
        }
 
-      return correlationID;
+      return false;
     }
 
 
+    /**
+     * Builds a request in the binary format, holding only the fields the
+     * Event Booking System needs.
+     *
+     * @param Event the Event to request tickets for
+     * @param int the number of tickets to request
+     * @param long the time after which the reply is no longer wanted
+     * @return BytesMessage the request
+     */
+    private static BytesMessage createBinaryRequest(Event event, int numTickets, long deadline) throws JMSException
+    {
+      BytesMessage requestMessage = session.createBytesMessage();
+      requestMessage.writeByte(BINARY_VERSION);
+      requestMessage.writeInt(event.getEventID());
+      requestMessage.writeInt(numTickets);
+      requestMessage.writeUTF(REQUESTER_ID);
+      requestMessage.writeLong(deadline);
+      return requestMessage;
+    }
+
     /**
      * gets a message from the confirmation queue,
+     * Replies to earlier requests that were given up on are thrown away.
      *
      * Challenge : our reseller application does a get from this queue
      *
@@ -114,29 +279,98 @@ public class TicketRequester
     public boolean get(String correlationID) {
       boolean success = false;
       Message responseMsg = null;
+      if (replyConsumer == null) {
+        logger.warning("No consumer open for the confirmation queue");
+        return success;
+      }
 
       try {
-        Destination destination = session.createQueue(CONFIRMATION_QUEUE);
-        MessageConsumer messageConsumer = session.createConsumer(destination, "JMSCorrelationID='"+correlationID+"'");
         logger.info("Waiting for 30 seconds for a response");
-        responseMsg = messageConsumer.receive(30000);
+        long deadline = System.currentTimeMillis() + RESPONSE_TIMEOUT;
+        long remaining = RESPONSE_TIMEOUT;
+        while (remaining > 0) {
+          Message received = replyConsumer.receive(remaining);
+          if (received == null) {
+            break;
+          }
+          String receivedID = received.getJMSCorrelationID();
+          if (correlationID.equals(receivedID)) {
+            responseMsg = received;
+            break;
+          }
+          sentAt.remove(receivedID);
+          logger.fine("Discarding late response for request " + receivedID);
+          remaining = deadline - System.currentTimeMillis();
+        }
 
         if (responseMsg != null) {
+          logLatency(correlationID);
           success = isAccepted(responseMsg);
         }
+        else {
+          sentAt.remove(correlationID);
+        }
       }
       catch (JMSException e) {
         logger.warning("Error connecting to confirmation queue");
         e.printStackTrace();
-      } 
+      }
       return success;
     }
 
-    private boolean isAccepted(Message responseMsg) {
+    /**
+     * Closes the producer and reply consumer. Called before the session
+     * is closed.
+     *
+     * @param None
+     * @return None
+     */
+    public void close() {
+      if (correlator != null) {
+        correlator.close();
+        correlator = null;
+      }
+      try {
+        if (producer != null) {
+          producer.close();
+        }
+        if (replyConsumer != null) {
+          replyConsumer.close();
+        }
+        logger.finest("Closed producer and reply consumer");
+      }
+      catch (JMSException e) {
+        logger.warning("Error closing the producer and reply consumer");
+        e.printStackTrace();
+      }
+      producer = null;
+      replyConsumer = null;
+    }
+
+    private static long micros(long nanos) {
+      return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    static void logLatency(String correlationID) {
+      Long sent = sentAt.remove(correlationID);
+      if (sent != null) {
+        logger.fine("Response received " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sent) + "ms after the request was sent");
+      }
+    }
+
+    static boolean isAccepted(Message responseMsg) {
       boolean accepted = false;
       try {
-        String msgBody = responseMsg.getBody(String.class);
-        accepted = msgBody.equals(ACCEPTED);
+        String msgBody;
+        if (responseMsg instanceof BytesMessage) {
+          BytesMessage bytes = (BytesMessage) responseMsg;
+          accepted = bytes.readByte() == BINARY_VERSION && bytes.readByte() == BINARY_ACCEPTED;
+          msgBody = accepted ? ACCEPTED : "Rejected";
+        }
+        else {
+          msgBody = responseMsg.getBody(String.class);
+          accepted = msgBody.equals(ACCEPTED);
+        }
 
         logger.info("*************COMPLETED*********");
         logger.info("Received response of....");